@@ -14,19 +14,28 @@ import android.app.Application;
 import android.os.Bundle;
 
 import com.android.volley.RequestQueue;
-import com.android.volley.toolbox.Volley;
+
+import com.cyanogenmod.updater.download.DownloadQueue;
+import com.cyanogenmod.updater.misc.UpdateCatalog;
+import com.cyanogenmod.updater.requests.SharedHttpStack;
+import com.cyanogenmod.updater.utils.DigestCache;
 
 public class UpdateApplication extends Application implements
         Application.ActivityLifecycleCallbacks {
 
     private boolean mMainActivityActive;
     private RequestQueue mRequestQueue;
+    private UpdateCatalog mCatalog;
 
     @Override
     public void onCreate() {
         mMainActivityActive = false;
         registerActivityLifecycleCallbacks(this);
-        mRequestQueue = Volley.newRequestQueue(this);
+        SharedHttpStack.init();
+        mRequestQueue = SharedHttpStack.newRequestQueue(this);
+        DigestCache.init(this);
+        DownloadQueue.init(this);
+        mCatalog = new UpdateCatalog(this);
     }
 
     @Override
@@ -70,4 +79,8 @@ public class UpdateApplication extends Application implements
     public RequestQueue getQueue() {
         return mRequestQueue;
     }
+
+    public UpdateCatalog getCatalog() {
+        return mCatalog;
+    }
 }
@@ -20,8 +20,6 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Parcelable;
@@ -45,21 +43,29 @@ import android.widget.Toast;
 
 import com.android.internal.util.cm.ScreenType;
 
+import com.cyanogenmod.updater.download.DownloadQueue;
+import com.cyanogenmod.updater.download.Downloads;
 import com.cyanogenmod.updater.misc.Constants;
-import com.cyanogenmod.updater.misc.State;
+import com.cyanogenmod.updater.misc.UpdateCatalog;
 import com.cyanogenmod.updater.misc.UpdateInfo;
 import com.cyanogenmod.updater.receiver.DownloadReceiver;
+import com.cyanogenmod.updater.service.DownloadService;
+import com.cyanogenmod.updater.service.PrefetchJobService;
 import com.cyanogenmod.updater.service.UpdateCheckService;
 import com.cyanogenmod.updater.utils.UpdateFilter;
 import com.cyanogenmod.updater.utils.Utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 
 public class UpdatesSettings extends PreferenceActivity implements
         OnPreferenceChangeListener, UpdatePreference.OnReadyListener, UpdatePreference.OnActionListener {
@@ -82,29 +88,45 @@ public class UpdatesSettings extends PreferenceActivity implements
 
     private SharedPreferences mPrefs;
     private ListPreference mUpdateCheck;
+    private CheckBoxPreference mPrefetch;
 
     private PreferenceCategory mUpdatesList;
-    private UpdatePreference mDownloadingPreference;
 
     private File mUpdateFolder;
 
     private boolean mStartUpdateVisible = false;
     private ProgressDialog mProgressDialog;
 
-    private DownloadManager mDownloadManager;
-    private boolean mDownloading = false;
-    private long mDownloadId;
-    private String mFileName;
+    // Updates the user started downloading that aren't queued yet
+    private HashSet<String> mStartingDownloads = new HashSet<String>();
 
     private Handler mUpdateHandler = new Handler();
 
+    private UpdateCatalog.Listener mCatalogListener = new UpdateCatalog.Listener() {
+        @Override
+        public void onCatalogChanged(List<UpdateInfo> updates) {
+            // A check started from here refreshes the list once it's finished
+            if (mProgressDialog == null) {
+                updateLayout();
+            }
+        }
+    };
+
     private BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
 
             if (DownloadReceiver.ACTION_DOWNLOAD_STARTED.equals(action)) {
-                mDownloadId = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
+                mUpdateHandler.removeCallbacks(mUpdateProgress);
+                mUpdateHandler.post(mUpdateProgress);
+            } else if (DownloadReceiver.ACTION_DOWNLOAD_REJECTED.equals(action)) {
+                // The progress update resets it, now that it won't be queued
+                mStartingDownloads.remove(
+                        intent.getStringExtra(DownloadReceiver.EXTRA_UPDATE_KEY));
+                Toast.makeText(UpdatesSettings.this, R.string.download_no_space,
+                        Toast.LENGTH_LONG).show();
+                mUpdateHandler.removeCallbacks(mUpdateProgress);
                 mUpdateHandler.post(mUpdateProgress);
             } else if (UpdateCheckService.ACTION_CHECK_FINISHED.equals(action)) {
                 if (mProgressDialog != null) {
@@ -129,8 +151,6 @@ public class UpdatesSettings extends PreferenceActivity implements
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        mDownloadManager = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
-
         // Load the layouts
         if (!Utils.hasLeanback(this)) {
             addPreferencesFromResource(R.xml.main);
@@ -139,6 +159,7 @@ public class UpdatesSettings extends PreferenceActivity implements
         }
         mUpdatesList = (PreferenceCategory) findPreference(UPDATES_CATEGORY);
         mUpdateCheck = (ListPreference) findPreference(Constants.UPDATE_CHECK_PREF);
+        mPrefetch = (CheckBoxPreference) findPreference(Constants.PREFETCH_PREF);
 
         // Load the stored preference data
         mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
@@ -148,6 +169,10 @@ public class UpdatesSettings extends PreferenceActivity implements
             mUpdateCheck.setSummary(mapCheckValue(check));
             mUpdateCheck.setOnPreferenceChangeListener(this);
         }
+        if (mPrefetch != null) {
+            mPrefetch.setChecked(PrefetchJobService.isEnabled(this));
+            mPrefetch.setOnPreferenceChangeListener(this);
+        }
 
         // Force a refresh if UPDATE_TYPE_PREF does not match release type
         int updateType = Utils.getUpdateType();
@@ -242,6 +267,7 @@ public class UpdatesSettings extends PreferenceActivity implements
     @Override
     public void onReady(UpdatePreference pref) {
         pref.setOnReadyListener(null);
+        mUpdateHandler.removeCallbacks(mUpdateProgress);
         mUpdateHandler.post(mUpdateProgress);
     }
 
@@ -253,6 +279,15 @@ public class UpdatesSettings extends PreferenceActivity implements
             mUpdateCheck.setSummary(mapCheckValue(value));
             Utils.scheduleUpdateService(this, value * 1000);
             return true;
+        } else if (preference == mPrefetch) {
+            boolean enabled = (Boolean) newValue;
+            mPrefs.edit().putBoolean(Constants.PREFETCH_PREF, enabled).apply();
+            if (enabled) {
+                PrefetchJobService.schedule(this);
+            } else {
+                PrefetchJobService.cancel(this);
+            }
+            return true;
         }
 
         return false;
@@ -262,33 +297,23 @@ public class UpdatesSettings extends PreferenceActivity implements
     protected void onStart() {
         super.onStart();
 
-        // Determine if there are any in-progress downloads
-        mDownloadId = mPrefs.getLong(Constants.DOWNLOAD_ID, -1);
-        if (mDownloadId >= 0) {
-            Cursor c = mDownloadManager.query(new DownloadManager.Query().setFilterById(mDownloadId));
-            if (c == null || !c.moveToFirst()) {
+        // Drop downloads that disappeared behind our back
+        for (DownloadQueue.Entry entry : DownloadQueue.getEntries()) {
+            if (entry.state == DownloadQueue.STATE_RUNNING
+                    && Downloads.query(this, entry.id) == null) {
                 Toast.makeText(this, R.string.download_not_found, Toast.LENGTH_LONG).show();
-            } else {
-                int status = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_STATUS));
-                Uri uri = Uri.parse(c.getString(c.getColumnIndex(DownloadManager.COLUMN_URI)));
-                if (status == DownloadManager.STATUS_PENDING
-                        || status == DownloadManager.STATUS_RUNNING
-                        || status == DownloadManager.STATUS_PAUSED) {
-                    mFileName = uri.getLastPathSegment();
-                }
+                DownloadQueue.remove(entry.id);
             }
-            if (c != null) {
-                c.close();
-            }
-        }
-        if (mDownloadId < 0 || mFileName == null) {
-            resetDownloadState();
         }
+        // Continue queued downloads, including the ones interrupted by the process dying
+        DownloadService.schedule(this);
 
+        ((UpdateApplication) getApplicationContext()).getCatalog().addListener(mCatalogListener);
         updateLayout();
 
         IntentFilter filter = new IntentFilter(UpdateCheckService.ACTION_CHECK_FINISHED);
         filter.addAction(DownloadReceiver.ACTION_DOWNLOAD_STARTED);
+        filter.addAction(DownloadReceiver.ACTION_DOWNLOAD_REJECTED);
         registerReceiver(mReceiver, filter);
 
         checkForDownloadCompleted(getIntent());
@@ -300,6 +325,8 @@ public class UpdatesSettings extends PreferenceActivity implements
         super.onStop();
         mUpdateHandler.removeCallbacks(mUpdateProgress);
         unregisterReceiver(mReceiver);
+        ((UpdateApplication) getApplicationContext()).getCatalog()
+                .removeListener(mCatalogListener);
         if (mProgressDialog != null) {
             mProgressDialog.cancel();
             mProgressDialog = null;
@@ -314,31 +341,28 @@ public class UpdatesSettings extends PreferenceActivity implements
             return;
         }
 
-        if (mDownloading) {
-            Toast.makeText(this, R.string.download_already_running, Toast.LENGTH_LONG).show();
+        UpdateInfo ui = pref.getUpdateInfo();
+        if (ui == null) {
             return;
         }
 
-        // We have a match, get ready to trigger the download
-        mDownloadingPreference = pref;
-
-        UpdateInfo ui = mDownloadingPreference.getUpdateInfo();
-        if (ui == null) {
+        if (mStartingDownloads.contains(ui.getFileName())
+                || DownloadQueue.findByKey(ui.getFileName()) != null) {
+            Toast.makeText(this, R.string.download_already_running, Toast.LENGTH_LONG).show();
             return;
         }
 
-        mDownloadingPreference.setStyle(UpdatePreference.STYLE_DOWNLOADING);
+        pref.setStyle(UpdatePreference.STYLE_DOWNLOADING);
 
         // Set progress bar to indeterminate while incremental check runs
-        ProgressBar progressBar = mDownloadingPreference.getProgressBar();
+        ProgressBar progressBar = pref.getProgressBar();
         progressBar.setIndeterminate(true);
 
         // Disable cancel button while incremental check runs
-        ImageView updatesButton = mDownloadingPreference.getUpdatesButton();
+        ImageView updatesButton = pref.getUpdatesButton();
         updatesButton.setEnabled(false);
 
-        mFileName = ui.getFileName();
-        mDownloading = true;
+        mStartingDownloads.add(ui.getFileName());
 
         // Start the download
         Intent intent = new Intent(this, DownloadReceiver.class);
@@ -346,81 +370,81 @@ public class UpdatesSettings extends PreferenceActivity implements
         intent.putExtra(DownloadReceiver.EXTRA_UPDATE_INFO, (Parcelable) ui);
         sendBroadcast(intent);
 
+        mUpdateHandler.removeCallbacks(mUpdateProgress);
         mUpdateHandler.post(mUpdateProgress);
     }
 
     private Runnable mUpdateProgress = new Runnable() {
         public void run() {
-            if (!mDownloading || mDownloadingPreference == null || mDownloadId < 0) {
-                return;
-            }
-
-            ProgressBar progressBar = mDownloadingPreference.getProgressBar();
-            if (progressBar == null) {
-                return;
+            boolean downloading = false;
+            for (int i = 0; i < mUpdatesList.getPreferenceCount(); i++) {
+                Preference pref = mUpdatesList.getPreference(i);
+                if (pref instanceof UpdatePreference
+                        && ((UpdatePreference) pref).getStyle()
+                                == UpdatePreference.STYLE_DOWNLOADING) {
+                    downloading |= updateProgress((UpdatePreference) pref);
+                }
             }
 
-            ImageView updatesButton = mDownloadingPreference.getUpdatesButton();
-            if (updatesButton == null) {
-                return;
+            if (downloading) {
+                mUpdateHandler.postDelayed(this, 1000);
             }
+        }
+    };
 
-            // Enable updates button
-            updatesButton.setEnabled(true);
-
-            DownloadManager.Query q = new DownloadManager.Query();
-            q.setFilterById(mDownloadId);
+    /**
+     * @return whether the download of the update is still in progress
+     */
+    private boolean updateProgress(UpdatePreference pref) {
+        ProgressBar progressBar = pref.getProgressBar();
+        if (progressBar == null) {
+            return false;
+        }
 
-            Cursor cursor = mDownloadManager.query(q);
-            int status;
+        ImageView updatesButton = pref.getUpdatesButton();
+        if (updatesButton == null) {
+            return false;
+        }
 
-            if (cursor == null || !cursor.moveToFirst()) {
-                // DownloadReceiver has likely already removed the download
-                // from the DB due to failure or MD5 mismatch
-                status = DownloadManager.STATUS_FAILED;
-            } else {
-                status = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS));
+        String key = pref.getKey();
+        DownloadQueue.Entry entry = DownloadQueue.findByKey(key);
+        if (entry == null) {
+            if (mStartingDownloads.contains(key)) {
+                // Incremental check still running
+                return true;
             }
+            // Failed or cancelled, successful downloads arrive through onNewIntent
+            pref.setStyle(UpdatePreference.STYLE_NEW);
+            return false;
+        }
+        mStartingDownloads.remove(key);
 
-            switch (status) {
-                case DownloadManager.STATUS_PENDING:
-                    progressBar.setIndeterminate(true);
-                    break;
-                case DownloadManager.STATUS_PAUSED:
-                case DownloadManager.STATUS_RUNNING:
-                    int downloadedBytes = cursor.getInt(
-                        cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
-                    int totalBytes = cursor.getInt(
-                        cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
-
-                    if (totalBytes < 0) {
-                        progressBar.setIndeterminate(true);
-                    } else {
-                        progressBar.setIndeterminate(false);
-                        progressBar.setMax(totalBytes);
-                        progressBar.setProgress(downloadedBytes);
-                    }
-                    break;
-                case DownloadManager.STATUS_FAILED:
-                    mDownloadingPreference.setStyle(UpdatePreference.STYLE_NEW);
-                    resetDownloadState();
-                    break;
-            }
+        // The download can be cancelled, unless it is being verified
+        updatesButton.setEnabled(entry.state != DownloadQueue.STATE_VERIFYING);
 
-            if (cursor != null) {
-                cursor.close();
-            }
-            if (status != DownloadManager.STATUS_FAILED) {
-                mUpdateHandler.postDelayed(this, 1000);
-            }
+        Downloads.Status s = null;
+        if (entry.state == DownloadQueue.STATE_RUNNING) {
+            s = Downloads.query(this, entry.id);
         }
-    };
+
+        if (s != null && (s.status == DownloadManager.STATUS_RUNNING
+                || s.status == DownloadManager.STATUS_PAUSED) && s.totalBytes >= 0) {
+            progressBar.setIndeterminate(false);
+            progressBar.setMax((int) s.totalBytes);
+            progressBar.setProgress((int) s.bytesSoFar);
+        } else {
+            // Queued, pending or verifying
+            progressBar.setIndeterminate(true);
+        }
+        return true;
+    }
 
     @Override
     public void onStopDownload(final UpdatePreference pref) {
-        if (!mDownloading || mFileName == null || mDownloadId < 0) {
+        final String key = pref.getKey();
+        if (DownloadQueue.findByKey(key) == null) {
             pref.setStyle(UpdatePreference.STYLE_NEW);
-            resetDownloadState();
+            mStartingDownloads.remove(key);
             return;
         }
 
@@ -433,16 +457,13 @@ public class UpdatesSettings extends PreferenceActivity implements
                         // Set the preference back to new style
                         pref.setStyle(UpdatePreference.STYLE_NEW);
 
-                        // We are OK to stop download, trigger it
-                        mDownloadManager.remove(mDownloadId);
-                        mUpdateHandler.removeCallbacks(mUpdateProgress);
-                        resetDownloadState();
-
-                        // Clear the stored data from shared preferences
-                        mPrefs.edit()
-                                .remove(Constants.DOWNLOAD_ID)
-                                .remove(Constants.DOWNLOAD_MD5)
-                                .apply();
+                        // We are OK to stop download, trigger it. What was
+                        // downloaded so far is kept in case the user changes their mind
+                        DownloadQueue.Entry entry = DownloadQueue.removeByKey(key);
+                        if (entry != null && entry.id >= 0) {
+                            Downloads.remove(UpdatesSettings.this, entry.id, true);
+                        }
+                        DownloadService.schedule(UpdatesSettings.this);
 
                         Toast.makeText(UpdatesSettings.this,
                                 R.string.download_cancelled, Toast.LENGTH_SHORT).show();
@@ -462,17 +483,14 @@ public class UpdatesSettings extends PreferenceActivity implements
             return;
         }
 
-        long downloadId = intent.getLongExtra(EXTRA_FINISHED_DOWNLOAD_ID, -1);
-        if (downloadId < 0) {
-            return;
-        }
-
+        // Builds that were already on the device come without a download id
         String fullPathName = intent.getStringExtra(EXTRA_FINISHED_DOWNLOAD_PATH);
         if (fullPathName == null) {
             return;
         }
 
         String fileName = new File(fullPathName).getName();
+        mStartingDownloads.remove(fileName);
 
         // If this is an incremental, find matching target and mark it as downloaded.
         String incrementalFor = intent.getStringExtra(EXTRA_FINISHED_DOWNLOAD_INCREMENTAL_FOR);
@@ -491,15 +509,6 @@ public class UpdatesSettings extends PreferenceActivity implements
                 onStartUpdate(pref);
             }
         }
-
-        resetDownloadState();
-    }
-
-    private void resetDownloadState() {
-        mDownloadId = -1;
-        mFileName = null;
-        mDownloading = false;
-        mDownloadingPreference = null;
     }
 
     private String mapCheckValue(Integer value) {
@@ -566,7 +575,8 @@ public class UpdatesSettings extends PreferenceActivity implements
         Utils.cancelNotification(this);
 
         // Build list of updates
-        LinkedList<UpdateInfo> availableUpdates = State.loadState(this);
+        LinkedList<UpdateInfo> availableUpdates =
+                ((UpdateApplication) getApplicationContext()).getCatalog().getUpdates();
         final LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
 
         for (String fileName : existingFiles) {
@@ -643,17 +653,18 @@ public class UpdatesSettings extends PreferenceActivity implements
                 continue;
             }
 
-            // Check to see if there is an incremental
+            // Check to see if there is an incremental, or the next one of a chain
             boolean haveIncremental = false;
-            String incrementalFile = "incremental-" + installedIncremental + "-"
-                    + ui.getIncremental() + ".zip";
-            if (updatesMap.containsKey(incrementalFile)) {
+            String incrementalFile = findIncrementalChain(updatesMap.keySet(),
+                    installedIncremental, ui.getIncremental());
+            if (incrementalFile != null) {
                 haveIncremental = true;
                 ui.setFileName(incrementalFile);
             }
 
             // Determine the preference style and create the preference
-            boolean isDownloading = ui.getFileName().equals(mFileName);
+            boolean isDownloading = mStartingDownloads.contains(ui.getFileName())
+                    || DownloadQueue.findByKey(ui.getFileName()) != null;
             int style;
 
             if (isDownloading) {
@@ -674,11 +685,9 @@ public class UpdatesSettings extends PreferenceActivity implements
             up.setOnActionListener(this);
             up.setKey(ui.getFileName());
 
-            // If we have an in progress download, link the preference
+            // If we have an in progress download, update it once the view is there
             if (isDownloading) {
-                mDownloadingPreference = up;
                 up.setOnReadyListener(this);
-                mDownloading = true;
             }
 
             // Add to the list
@@ -699,6 +708,43 @@ public class UpdatesSettings extends PreferenceActivity implements
         }
     }
 
+    /**
+     * @return the downloaded incremental to install next on the way from the
+     *         installed build to the target, or null if there is none
+     */
+    private static String findIncrementalChain(Set<String> fileNames,
+            String installedIncremental, String targetIncremental) {
+        HashSet<String> visited = new HashSet<String>();
+        ArrayList<String> sources = new ArrayList<String>();
+        HashMap<String, String> firstFiles = new HashMap<String, String>();
+        sources.add(installedIncremental);
+
+        // Breadth first, so the shortest chain wins
+        for (int i = 0; i < sources.size(); i++) {
+            String source = sources.get(i);
+            if (!visited.add(source)) {
+                continue;
+            }
+            String prefix = "incremental-" + source + "-";
+            for (String fileName : fileNames) {
+                if (!fileName.startsWith(prefix) || !fileName.endsWith(".zip")) {
+                    continue;
+                }
+                String target = fileName.substring(prefix.length(),
+                        fileName.length() - ".zip".length());
+                String firstFile = i == 0 ? fileName : firstFiles.get(source);
+                if (target.equals(targetIncremental)) {
+                    return firstFile;
+                }
+                if (!firstFiles.containsKey(target)) {
+                    firstFiles.put(target, firstFile);
+                    sources.add(target);
+                }
+            }
+        }
+        return null;
+    }
+
     @Override
     public void onDeleteUpdate(UpdatePreference pref) {
         final String fileName = pref.getKey();
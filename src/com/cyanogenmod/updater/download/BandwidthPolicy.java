@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.TrafficStats;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+
+import com.cyanogenmod.updater.R;
+
+/**
+ * Rate policy for built-in downloads. There are separate caps for metered and
+ * unmetered networks, and in the background tier downloads back off whenever
+ * something else on the device is using the network.
+ */
+public class BandwidthPolicy implements RateLimiter.Policy {
+    private static final String METERED_RATE_PROPERTY = "cm.updater.download.rate.metered";
+    private static final String UNMETERED_RATE_PROPERTY = "cm.updater.download.rate.unmetered";
+    private static final String BACKGROUND_PROPERTY = "cm.updater.download.background";
+
+    // Traffic of other apps above this is treated as foreground use
+    private static final long FOREGROUND_TRAFFIC_RATE = 32 * 1024;
+    // Rate we drop to while the network is in use, unless the cap is lower
+    private static final long BACKGROUND_RATE = 64 * 1024;
+
+    private final Context mContext;
+    private final int mUid = Process.myUid();
+    private long mLastOtherBytes = -1;
+    private long mLastSample;
+
+    public BandwidthPolicy(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    public long getRate() {
+        ConnectivityManager cm =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        long rate = cm.isActiveNetworkMetered()
+                ? getRate(METERED_RATE_PROPERTY, R.integer.conf_download_rate_metered)
+                : getRate(UNMETERED_RATE_PROPERTY, R.integer.conf_download_rate_unmetered);
+
+        if (isBackground() && isForegroundTraffic()) {
+            rate = rate > 0 ? Math.min(rate, BACKGROUND_RATE) : BACKGROUND_RATE;
+        }
+        return rate;
+    }
+
+    private boolean isBackground() {
+        return SystemProperties.getBoolean(BACKGROUND_PROPERTY,
+                mContext.getResources().getBoolean(R.bool.conf_download_background));
+    }
+
+    /**
+     * @return the cap in bytes per second, or 0 for none
+     */
+    private long getRate(String property, int resId) {
+        int rateKb = SystemProperties.getInt(property, -1);
+        if (rateKb < 0) {
+            rateKb = mContext.getResources().getInteger(resId);
+        }
+        return Math.max(0, rateKb) * 1024L;
+    }
+
+    private boolean isForegroundTraffic() {
+        long total = TrafficStats.getTotalRxBytes() + TrafficStats.getTotalTxBytes();
+        long own = TrafficStats.getUidRxBytes(mUid) + TrafficStats.getUidTxBytes(mUid);
+        if (total < 0 || own < 0) {
+            // Not supported on this device
+            return false;
+        }
+
+        long otherBytes = total - own;
+        long now = SystemClock.elapsedRealtime();
+        boolean busy = false;
+        if (mLastOtherBytes >= 0 && now > mLastSample) {
+            busy = (otherBytes - mLastOtherBytes) * 1000 / (now - mLastSample)
+                    > FOREGROUND_TRAFFIC_RATE;
+        }
+        mLastOtherBytes = otherBytes;
+        mLastSample = now;
+        return busy;
+    }
+}
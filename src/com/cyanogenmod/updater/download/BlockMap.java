@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.util.Log;
+
+import com.cyanogenmod.updater.requests.SharedHttpStack;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Block checksums of an update zip, laid out like a zsync control file: a
+ * header of "Name: value" lines up to an empty line, followed by a record
+ * for every block of the file. A record is the 4 byte big endian rolling
+ * checksum of the block and the first Checksum-Bytes bytes of its MD5. The
+ * last block is padded with zeros.
+ *
+ * <pre>
+ * Blocksize: 4096
+ * Length: 734003200
+ * Checksum-Bytes: 8
+ * </pre>
+ */
+public class BlockMap {
+    private static final String TAG = "BlockMap";
+
+    private static final String HEADER_BLOCK_SIZE = "Blocksize";
+    private static final String HEADER_LENGTH = "Length";
+    private static final String HEADER_CHECKSUM_BYTES = "Checksum-Bytes";
+
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    private static final int MAX_HEADER_LINE = 1024;
+
+    private final int mBlockSize;
+    private final long mLength;
+    private final int mChecksumBytes;
+    private final int[] mWeak;
+    private final byte[] mStrong;
+
+    // Blocks by rolling checksum: the first block with a hash in mHeads, the
+    // next one with the same hash in mNext, -1 ends the chain
+    private final int[] mHeads;
+    private final int[] mNext;
+    private final int mMask;
+
+    BlockMap(int blockSize, long length, int checksumBytes, int[] weak, byte[] strong) {
+        mBlockSize = blockSize;
+        mLength = length;
+        mChecksumBytes = checksumBytes;
+        mWeak = weak;
+        mStrong = strong;
+
+        int tableSize = Integer.highestOneBit(Math.max(1, weak.length)) * 2;
+        mMask = tableSize - 1;
+        mHeads = new int[tableSize];
+        mNext = new int[weak.length];
+        Arrays.fill(mHeads, -1);
+        for (int i = weak.length - 1; i >= 0; i--) {
+            int slot = hash(weak[i]);
+            mNext[i] = mHeads[slot];
+            mHeads[slot] = i;
+        }
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    public int getBlockCount() {
+        return mWeak.length;
+    }
+
+    /**
+     * @return the first block with the rolling checksum, or -1
+     */
+    int firstWithWeak(int weak) {
+        int block = mHeads[hash(weak)];
+        while (block >= 0 && mWeak[block] != weak) {
+            block = mNext[block];
+        }
+        return block;
+    }
+
+    /**
+     * @return the next block after the given one with the same rolling checksum, or -1
+     */
+    int nextWithWeak(int block) {
+        int weak = mWeak[block];
+        block = mNext[block];
+        while (block >= 0 && mWeak[block] != weak) {
+            block = mNext[block];
+        }
+        return block;
+    }
+
+    /**
+     * @return whether the MD5 of some data matches the one of the block
+     */
+    boolean strongMatches(int block, byte[] md5) {
+        int offset = block * mChecksumBytes;
+        for (int i = 0; i < mChecksumBytes; i++) {
+            if (mStrong[offset + i] != md5[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hash(int weak) {
+        return (weak ^ (weak >>> 16)) & mMask;
+    }
+
+    /**
+     * The rolling checksum of rsync and zsync over a block of data
+     */
+    public static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xff;
+            a += value;
+            b += (length - i) * value;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    /**
+     * @return the strong checksum of a block as stored in the map
+     */
+    public static byte[] strongChecksum(MessageDigest md5, byte[] data, int offset,
+            int length) {
+        md5.reset();
+        md5.update(data, offset, length);
+        return md5.digest();
+    }
+
+    /**
+     * Downloads and parses the block map.
+     *
+     * @return the map, or null if it is unavailable or malformed
+     */
+    public static BlockMap load(String url, String userAgent) {
+        HttpURLConnection conn = null;
+        InputStream in = null;
+        boolean consumed = false;
+        try {
+            conn = SharedHttpStack.open(url, userAgent);
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                Log.d(TAG, "GET " + url + " returned " + conn.getResponseCode());
+                return null;
+            }
+            in = new BufferedInputStream(conn.getInputStream());
+            BlockMap map = read(in);
+            consumed = true;
+            Log.d(TAG, "Got " + map.getBlockCount() + " blocks of " + map.getBlockSize()
+                    + " bytes from " + url);
+            return map;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to load block map " + url + ": " + e.getMessage());
+            return null;
+        } finally {
+            if (consumed) {
+                SharedHttpStack.release(in);
+            } else if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    static BlockMap read(InputStream in) throws IOException {
+        int blockSize = -1;
+        long length = -1;
+        int checksumBytes = -1;
+
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                throw new IOException("Malformed header line " + line);
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            try {
+                if (HEADER_BLOCK_SIZE.equalsIgnoreCase(name)) {
+                    blockSize = Integer.parseInt(value);
+                } else if (HEADER_LENGTH.equalsIgnoreCase(name)) {
+                    length = Long.parseLong(value);
+                } else if (HEADER_CHECKSUM_BYTES.equalsIgnoreCase(name)) {
+                    checksumBytes = Integer.parseInt(value);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed header line " + line);
+            }
+        }
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE || length < 0
+                || checksumBytes < 4 || checksumBytes > 16) {
+            throw new IOException("Incomplete header");
+        }
+
+        long blocks = (length + blockSize - 1) / blockSize;
+        if (blocks * checksumBytes > Integer.MAX_VALUE) {
+            throw new IOException("Too many blocks: " + blocks);
+        }
+        int count = (int) blocks;
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * checksumBytes];
+        DataInputStream data = new DataInputStream(in);
+        for (int i = 0; i < count; i++) {
+            weak[i] = data.readInt();
+            data.readFully(strong, i * checksumBytes, checksumBytes);
+        }
+        return new BlockMap(blockSize, length, checksumBytes, weak, strong);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0 || line.length() > MAX_HEADER_LINE) {
+                throw new IOException("Unexpected end of header");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+}
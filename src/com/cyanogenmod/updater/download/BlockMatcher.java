@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the blocks of a {@link BlockMap} in local files and copies them to
+ * their place in the output, like zsync does. Every offset of a local file is
+ * tried with the rolling checksum, which is cheap to move along by one byte,
+ * and only offsets where that matches are confirmed with MD5.
+ */
+class BlockMatcher {
+    private static final String TAG = "BlockMatcher";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // Blocks that were found, but are this close to the next missing range,
+    // are fetched with it: another request costs more than the bytes
+    private static final long MIN_GAP = 64 * 1024;
+
+    private final BlockMap mMap;
+    private final int mBlockSize;
+    // The last block is shorter unless the length is a multiple of the block
+    // size, so it only matches by chance and is always fetched
+    private final int mFullBlocks;
+    private final boolean[] mHave;
+    private final MessageDigest mMd5;
+    private int mFound;
+
+    BlockMatcher(BlockMap map) throws NoSuchAlgorithmException {
+        mMap = map;
+        mBlockSize = map.getBlockSize();
+        mFullBlocks = (int) (map.getLength() / mBlockSize);
+        mHave = new boolean[map.getBlockCount()];
+        mMd5 = MessageDigest.getInstance("MD5");
+    }
+
+    boolean isComplete() {
+        return mFound >= mFullBlocks;
+    }
+
+    /**
+     * Copies every block of the map found in the source to the output.
+     *
+     * @param listener told about every block written, and once per buffer
+     *        read with a count of zero, so it can abort a long scan
+     * @return the number of bytes written
+     */
+    long scan(File source, FileChannel out, RangeRequest.ProgressListener listener)
+            throws IOException {
+        if (isComplete() || source.length() < mBlockSize) {
+            return 0;
+        }
+
+        final int blockSize = mBlockSize;
+        byte[] buffer = new byte[Math.max(BUFFER_SIZE, 2 * blockSize)];
+        long written = 0;
+        InputStream in = null;
+        try {
+            in = new FileInputStream(source);
+            int filled = fill(in, buffer, 0);
+            int start = 0;
+            if (filled < blockSize) {
+                return 0;
+            }
+            int weak = BlockMap.weakChecksum(buffer, 0, blockSize);
+            int a = weak & 0xffff;
+            int b = weak >>> 16;
+
+            while (true) {
+                boolean matched = false;
+                int block = mMap.firstWithWeak((b << 16) | a);
+                if (block >= 0) {
+                    byte[] md5 = BlockMap.strongChecksum(mMd5, buffer, start, blockSize);
+                    for (; block >= 0; block = mMap.nextWithWeak(block)) {
+                        if (block >= mFullBlocks || !mMap.strongMatches(block, md5)) {
+                            continue;
+                        }
+                        matched = true;
+                        if (!mHave[block]) {
+                            write(out, buffer, start, blockSize, (long) block * blockSize);
+                            mHave[block] = true;
+                            mFound++;
+                            written += blockSize;
+                            listener.onBytesWritten(blockSize);
+                        }
+                    }
+                }
+                if (isComplete()) {
+                    break;
+                }
+
+                // After a match the next block most likely follows right
+                // after it, otherwise move on by one byte
+                int step = matched ? blockSize : 1;
+                if (start + step + blockSize > filled) {
+                    System.arraycopy(buffer, start, buffer, 0, filled - start);
+                    filled -= start;
+                    start = 0;
+                    filled = fill(in, buffer, filled);
+                    listener.onBytesWritten(0);
+                    if (step + blockSize > filled) {
+                        break;
+                    }
+                }
+
+                if (matched) {
+                    start += blockSize;
+                    weak = BlockMap.weakChecksum(buffer, start, blockSize);
+                    a = weak & 0xffff;
+                    b = weak >>> 16;
+                } else {
+                    int removed = buffer[start] & 0xff;
+                    int added = buffer[start + blockSize] & 0xff;
+                    a = (a - removed + added) & 0xffff;
+                    b = (b - blockSize * removed + a) & 0xffff;
+                    start++;
+                }
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore, not much we can do anyway
+                }
+            }
+        }
+        Log.d(TAG, "Reused " + written + " bytes of " + source);
+        return written;
+    }
+
+    /**
+     * @return [start, end) of the parts of the file that still have to be
+     *         fetched, in order
+     */
+    List<long[]> getMissingRanges() {
+        ArrayList<long[]> ranges = new ArrayList<long[]>();
+        long length = mMap.getLength();
+        for (int block = 0; block < mHave.length; block++) {
+            if (mHave[block]) {
+                continue;
+            }
+            long start = (long) block * mBlockSize;
+            long end = Math.min(length, start + mBlockSize);
+            long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && start - last[1] < MIN_GAP) {
+                last[1] = end;
+            } else {
+                ranges.add(new long[] { start, end });
+            }
+        }
+        return ranges;
+    }
+
+    private static void write(FileChannel out, byte[] buffer, int offset, int length,
+            long position) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(buffer, offset, length);
+        while (src.hasRemaining()) {
+            position += out.write(src, position);
+        }
+    }
+
+    private static int fill(InputStream in, byte[] buffer, int filled) throws IOException {
+        int read;
+        while (filled < buffer.length
+                && (read = in.read(buffer, filled, buffer.length - filled)) > 0) {
+            filled += read;
+        }
+        return filled;
+    }
+}
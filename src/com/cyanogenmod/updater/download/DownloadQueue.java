@@ -0,0 +1,501 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.content.Context;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.cyanogenmod.updater.utils.MultiDigest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Persistent list of the update downloads the app knows about, from being
+ * queued until their verification is done. Queued downloads are started by
+ * priority, and in the order they were added within the same priority.
+ */
+public class DownloadQueue {
+    private static final String TAG = "DownloadQueue";
+    private static final String FILENAME = "downloads.json";
+
+    public static final int PRIORITY_BACKGROUND = 0;
+    public static final int PRIORITY_USER = 100;
+
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_VERIFYING = 2;
+
+    private static File sQueueFile;
+    private static ArrayList<Entry> sEntries;
+    private static long sNextSequence;
+
+    private static final Comparator<Entry> sStartOrder = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.priority != rhs.priority) {
+                return lhs.priority > rhs.priority ? -1 : 1;
+            }
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+
+    /**
+     * Everything needed to start, track and verify one download
+     */
+    public static class Entry {
+        // Key of the update in the UI, the file name of the full build
+        public String key;
+        public String url;
+        public List<String> mirrorUrls = new ArrayList<String>();
+        public String localPath;
+        // Size of the file if the server told us, -1 otherwise
+        public long size = -1;
+        public String md5;
+        public String sha256;
+        public String crc32;
+        public String chunks;
+        // Url of the block checksums of the file, for reusing local blocks
+        public String blockMapUrl;
+        // File name of the full build if this is an incremental for it
+        public String incrementalFor;
+        // Incrementals that have to follow this one to reach the build
+        public List<Entry> nextHops = new ArrayList<Entry>();
+        // Completed file of the first incremental of the chain, which is the
+        // one to install, if this is a later one
+        public String firstHopPath;
+        public int priority = PRIORITY_USER;
+
+        // Download id once the download was started, -1 while queued
+        public long id = -1;
+        public int state = STATE_QUEUED;
+        private long sequence;
+
+        public File getPartialFile() {
+            return new File(Uri.parse(localPath).getPath());
+        }
+
+        /**
+         * @return the expected digests of the file, keyed by algorithm
+         */
+        public HashMap<String, String> getDigests() {
+            HashMap<String, String> digests = new HashMap<String, String>();
+            if (!TextUtils.isEmpty(md5)) {
+                digests.put(MultiDigest.ALGORITHM_MD5, md5);
+            }
+            if (!TextUtils.isEmpty(sha256)) {
+                digests.put(MultiDigest.ALGORITHM_SHA256, sha256);
+            }
+            if (!TextUtils.isEmpty(crc32)) {
+                digests.put(MultiDigest.ALGORITHM_CRC32, crc32);
+            }
+            return digests;
+        }
+
+        /**
+         * @return the entry for the incremental after this one, or null if
+         *         this is the last one
+         */
+        public Entry takeNextHop() {
+            if (nextHops.isEmpty()) {
+                return null;
+            }
+            Entry next = nextHops.get(0).copy();
+            next.nextHops = new ArrayList<Entry>();
+            for (int i = 1; i < nextHops.size(); i++) {
+                next.nextHops.add(nextHops.get(i).copy());
+            }
+            return next;
+        }
+
+        private JSONObject toJSON() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("key", key);
+            obj.put("url", url);
+            obj.put("mirrors", new JSONArray(mirrorUrls));
+            obj.put("local_path", localPath);
+            obj.put("size", size);
+            obj.putOpt("md5", md5);
+            obj.putOpt("sha256", sha256);
+            obj.putOpt("crc32", crc32);
+            obj.putOpt("chunks", chunks);
+            obj.putOpt("block_map_url", blockMapUrl);
+            obj.putOpt("incremental_for", incrementalFor);
+            if (!nextHops.isEmpty()) {
+                JSONArray hops = new JSONArray();
+                for (Entry hop : nextHops) {
+                    hops.put(hop.toJSON());
+                }
+                obj.put("next_hops", hops);
+            }
+            obj.putOpt("first_hop_path", firstHopPath);
+            obj.put("priority", priority);
+            obj.put("id", id);
+            obj.put("state", state);
+            obj.put("sequence", sequence);
+            return obj;
+        }
+
+        private static Entry fromJSON(JSONObject obj) throws JSONException {
+            Entry entry = new Entry();
+            entry.key = obj.getString("key");
+            entry.url = obj.getString("url");
+            JSONArray mirrors = obj.optJSONArray("mirrors");
+            for (int i = 0; mirrors != null && i < mirrors.length(); i++) {
+                entry.mirrorUrls.add(mirrors.getString(i));
+            }
+            entry.localPath = obj.getString("local_path");
+            entry.size = obj.optLong("size", -1);
+            entry.md5 = obj.optString("md5", null);
+            entry.sha256 = obj.optString("sha256", null);
+            entry.crc32 = obj.optString("crc32", null);
+            entry.chunks = obj.optString("chunks", null);
+            entry.blockMapUrl = obj.optString("block_map_url", null);
+            entry.incrementalFor = obj.optString("incremental_for", null);
+            JSONArray hops = obj.optJSONArray("next_hops");
+            for (int i = 0; hops != null && i < hops.length(); i++) {
+                entry.nextHops.add(fromJSON(hops.getJSONObject(i)));
+            }
+            entry.firstHopPath = obj.optString("first_hop_path", null);
+            entry.priority = obj.getInt("priority");
+            entry.id = obj.getLong("id");
+            entry.state = obj.getInt("state");
+            entry.sequence = obj.getLong("sequence");
+            return entry;
+        }
+
+        private Entry copy() {
+            Entry entry = new Entry();
+            entry.key = key;
+            entry.url = url;
+            entry.mirrorUrls = new ArrayList<String>(mirrorUrls);
+            entry.localPath = localPath;
+            entry.size = size;
+            entry.md5 = md5;
+            entry.sha256 = sha256;
+            entry.crc32 = crc32;
+            entry.chunks = chunks;
+            entry.blockMapUrl = blockMapUrl;
+            entry.incrementalFor = incrementalFor;
+            for (Entry hop : nextHops) {
+                entry.nextHops.add(hop.copy());
+            }
+            entry.firstHopPath = firstHopPath;
+            entry.priority = priority;
+            entry.id = id;
+            entry.state = state;
+            entry.sequence = sequence;
+            return entry;
+        }
+
+        @Override
+        public String toString() {
+            return key + " (id " + id + ", state " + state + ", priority " + priority + ")";
+        }
+    }
+
+    private DownloadQueue() {
+        // this class is not supposed to be instantiated
+    }
+
+    public static synchronized void init(Context context) {
+        sQueueFile = new File(context.getFilesDir(), FILENAME);
+        sEntries = null;
+    }
+
+    /**
+     * Queues a download. An existing entry for the same key is replaced.
+     */
+    public static synchronized void add(Entry entry) {
+        if (!ensureLoaded()) {
+            return;
+        }
+        removeLocked(findLocked(entry.key, -1));
+
+        Entry added = entry.copy();
+        added.id = -1;
+        added.state = STATE_QUEUED;
+        added.sequence = sNextSequence++;
+        sEntries.add(added);
+        Log.d(TAG, "Queued " + added);
+        save();
+    }
+
+    /**
+     * @return a copy of the entry of the download, or null if it is unknown
+     */
+    public static synchronized Entry findById(long id) {
+        if (id < 0 || !ensureLoaded()) {
+            return null;
+        }
+        Entry entry = findLocked(null, id);
+        return entry != null ? entry.copy() : null;
+    }
+
+    /**
+     * @return a copy of the entry for the update, or null if there is none
+     */
+    public static synchronized Entry findByKey(String key) {
+        if (key == null || !ensureLoaded()) {
+            return null;
+        }
+        Entry entry = findLocked(key, -1);
+        return entry != null ? entry.copy() : null;
+    }
+
+    /**
+     * @return the highest built-in download id in the queue, or -1 if there
+     *         is none. Entries that are being verified keep theirs across
+     *         process restarts, so new ids have to be above it.
+     */
+    public static synchronized long getLastBuiltinId() {
+        long last = -1;
+        if (!ensureLoaded()) {
+            return last;
+        }
+        for (Entry entry : sEntries) {
+            if (Downloads.isBuiltin(entry.id)) {
+                last = Math.max(last, entry.id);
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @return copies of all entries, in the order they are started
+     */
+    public static synchronized List<Entry> getEntries() {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        if (!ensureLoaded()) {
+            return entries;
+        }
+        for (Entry entry : sEntries) {
+            entries.add(entry.copy());
+        }
+        Collections.sort(entries, sStartOrder);
+        return entries;
+    }
+
+    /**
+     * @param background whether background entries may be started as well
+     * @return the queued entries that can be started without having more than
+     *         maxRunning downloads at the same time, highest priority first
+     */
+    public static synchronized List<Entry> getStartable(int maxRunning, boolean background) {
+        List<Entry> entries = getEntries();
+        int running = 0;
+        for (Entry entry : entries) {
+            if (entry.state == STATE_RUNNING) {
+                running++;
+            }
+        }
+
+        ArrayList<Entry> startable = new ArrayList<Entry>();
+        for (Entry entry : entries) {
+            if (running + startable.size() >= maxRunning) {
+                break;
+            }
+            if (entry.state == STATE_QUEUED
+                    && (background || entry.priority > PRIORITY_BACKGROUND)) {
+                startable.add(entry);
+            }
+        }
+        return startable;
+    }
+
+    /**
+     * @return false if the entry was removed in the meantime
+     */
+    public static synchronized boolean setStarted(String key, long id) {
+        Entry entry = ensureLoaded() ? findLocked(key, -1) : null;
+        if (entry == null) {
+            return false;
+        }
+        entry.id = id;
+        entry.state = STATE_RUNNING;
+        save();
+        return true;
+    }
+
+    /**
+     * Puts a download that was stopped before it completed back in the queue,
+     * so it resumes from its partial file when it is started again
+     */
+    public static synchronized void requeue(long id) {
+        Entry entry = ensureLoaded() ? findLocked(null, id) : null;
+        if (entry != null) {
+            entry.id = -1;
+            entry.state = STATE_QUEUED;
+            save();
+        }
+    }
+
+    /**
+     * Raises the priority of the entry for the update, e.g. when the user asks
+     * for a build that is being prefetched
+     */
+    public static synchronized void raisePriority(String key, int priority) {
+        Entry entry = ensureLoaded() ? findLocked(key, -1) : null;
+        if (entry != null && entry.priority < priority) {
+            entry.priority = priority;
+            for (Entry hop : entry.nextHops) {
+                hop.priority = Math.max(hop.priority, priority);
+            }
+            save();
+        }
+    }
+
+    public static synchronized void setVerifying(long id) {
+        Entry entry = ensureLoaded() ? findLocked(null, id) : null;
+        if (entry != null) {
+            entry.state = STATE_VERIFYING;
+            save();
+        }
+    }
+
+    /**
+     * @return the removed entry, or null if the download is unknown
+     */
+    public static synchronized Entry remove(long id) {
+        if (id < 0 || !ensureLoaded()) {
+            return null;
+        }
+        Entry entry = findLocked(null, id);
+        removeLocked(entry);
+        return entry;
+    }
+
+    /**
+     * @return the removed entry, or null if there was none for the update
+     */
+    public static synchronized Entry removeByKey(String key) {
+        if (key == null || !ensureLoaded()) {
+            return null;
+        }
+        Entry entry = findLocked(key, -1);
+        removeLocked(entry);
+        return entry;
+    }
+
+    private static Entry findLocked(String key, long id) {
+        for (Entry entry : sEntries) {
+            if (key != null ? key.equals(entry.key) : entry.id == id) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static void removeLocked(Entry entry) {
+        if (entry != null && sEntries.remove(entry)) {
+            Log.d(TAG, "Removed " + entry);
+            save();
+        }
+    }
+
+    private static boolean ensureLoaded() {
+        if (sQueueFile == null) {
+            return false;
+        }
+        if (sEntries != null) {
+            return true;
+        }
+
+        sEntries = new ArrayList<Entry>();
+        sNextSequence = 0;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(sQueueFile));
+            StringBuilder json = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                json.append(line);
+            }
+            JSONArray array = new JSONArray(json.toString());
+            for (int i = 0; i < array.length(); i++) {
+                Entry entry = Entry.fromJSON(array.getJSONObject(i));
+                if (entry.state == STATE_RUNNING && Downloads.isBuiltin(entry.id)) {
+                    // Built-in downloads die with the process, queue them
+                    // again so they resume from their partial file
+                    entry.id = -1;
+                    entry.state = STATE_QUEUED;
+                }
+                sEntries.add(entry);
+                sNextSequence = Math.max(sNextSequence, entry.sequence + 1);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing queued yet
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading download queue", e);
+            sEntries.clear();
+        } catch (JSONException e) {
+            Log.e(TAG, "Discarding corrupt download queue", e);
+            sEntries.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void save() {
+        File tmpFile = new File(sQueueFile.getPath() + ".tmp");
+        FileWriter writer = null;
+        boolean written = false;
+        try {
+            JSONArray array = new JSONArray();
+            for (Entry entry : sEntries) {
+                array.put(entry.toJSON());
+            }
+            writer = new FileWriter(tmpFile);
+            writer.write(array.toString());
+            writer.close();
+            writer = null;
+            written = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on saving download queue", e);
+        } catch (JSONException e) {
+            Log.e(TAG, "Exception on saving download queue", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+
+        if (written && !tmpFile.renameTo(sQueueFile)) {
+            Log.e(TAG, "Unable to replace " + sQueueFile);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemProperties;
+import android.text.TextUtils;
+
+import com.cyanogenmod.updater.R;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Single entry point for querying and removing update downloads, regardless of
+ * whether they are handled by the platform DownloadManager or by the app itself.
+ */
+public class Downloads {
+    // Ids of built-in downloads start here so they can never collide with
+    // DownloadManager row ids
+    private static final long BUILTIN_ID_BASE = 1L << 40;
+
+    private static final String ENGINE_PROPERTY = "cm.updater.downloader";
+    private static final String ENGINE_BUILTIN = "builtin";
+    private static final String ENGINE_SYSTEM = "system";
+    private static final String CONNECTIONS_PROPERTY = "cm.updater.download.connections";
+    private static final int MAX_CONNECTIONS = 16;
+    private static final String CONCURRENT_PROPERTY = "cm.updater.download.concurrent";
+
+    private static final HashMap<Long, StreamingDownload> sBuiltinDownloads =
+            new HashMap<Long, StreamingDownload>();
+    private static long sNextBuiltinId = BUILTIN_ID_BASE;
+    private static RateLimiter sRateLimiter;
+
+    private Downloads() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * Snapshot of a download, mirroring the DownloadManager columns we use
+     */
+    public static class Status {
+        public int status = DownloadManager.STATUS_FAILED;
+        public long bytesSoFar;
+        public long totalBytes = -1;
+        public String localPath;
+        public String uri;
+        // Digests calculated while downloading, null if the file needs to be hashed
+        public HashMap<String, String> calculatedDigests;
+    }
+
+    public static boolean useBuiltinEngine(Context context) {
+        String engine = SystemProperties.get(ENGINE_PROPERTY);
+        if (TextUtils.equals(engine, ENGINE_BUILTIN)) {
+            return true;
+        } else if (TextUtils.equals(engine, ENGINE_SYSTEM)) {
+            return false;
+        }
+        return context.getResources().getBoolean(R.bool.conf_builtin_downloader);
+    }
+
+    /**
+     * Maximum number of parallel connections per built-in download, can be
+     * overridden with the cm.updater.download.connections property
+     */
+    public static int getConnectionCount(Context context) {
+        int connections = SystemProperties.getInt(CONNECTIONS_PROPERTY, 0);
+        if (connections <= 0) {
+            connections = context.getResources().getInteger(R.integer.conf_download_connections);
+        }
+        return Math.max(1, Math.min(connections, MAX_CONNECTIONS));
+    }
+
+    /**
+     * Number of queued downloads that may run at the same time, can be
+     * overridden with the cm.updater.download.concurrent property
+     */
+    public static int getMaxConcurrentDownloads(Context context) {
+        int downloads = SystemProperties.getInt(CONCURRENT_PROPERTY, 0);
+        if (downloads <= 0) {
+            downloads = context.getResources().getInteger(R.integer.conf_download_concurrent);
+        }
+        return Math.max(1, downloads);
+    }
+
+    /**
+     * Get the limiter all built-in downloads share
+     */
+    public static synchronized RateLimiter getRateLimiter(Context context) {
+        if (sRateLimiter == null) {
+            sRateLimiter = new RateLimiter(new BandwidthPolicy(context));
+        }
+        return sRateLimiter;
+    }
+
+    public static boolean isBuiltin(long id) {
+        return id >= BUILTIN_ID_BASE;
+    }
+
+    public static synchronized StreamingDownload createBuiltin(String url,
+            List<String> mirrorUrls, File partialFile, String userAgent, String[] algorithms,
+            SegmentController controller, RateLimiter rateLimiter) {
+        // The counter starts over with the process, but queued ids don't
+        sNextBuiltinId = Math.max(sNextBuiltinId, DownloadQueue.getLastBuiltinId() + 1);
+        StreamingDownload download = new StreamingDownload(sNextBuiltinId++, url, mirrorUrls,
+                partialFile, userAgent, algorithms, controller, rateLimiter);
+        sBuiltinDownloads.put(download.getId(), download);
+        return download;
+    }
+
+    public static synchronized StreamingDownload getBuiltin(long id) {
+        return sBuiltinDownloads.get(id);
+    }
+
+    /**
+     * Forgets a finished built-in download once its result was handled
+     */
+    public static synchronized void release(long id) {
+        sBuiltinDownloads.remove(id);
+    }
+
+    /**
+     * @return the current state of the download, or null if it is unknown
+     */
+    public static Status query(Context context, long id) {
+        if (isBuiltin(id)) {
+            StreamingDownload download = getBuiltin(id);
+            if (download == null) {
+                return null;
+            }
+            Status s = new Status();
+            s.status = download.getStatus();
+            s.bytesSoFar = download.getBytesSoFar();
+            s.totalBytes = download.getTotalBytes();
+            s.localPath = download.getPartialFile().getAbsolutePath();
+            s.uri = download.getUrl();
+            s.calculatedDigests = download.getCalculatedDigests();
+            return s;
+        }
+
+        DownloadManager dm = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+        Cursor c = dm.query(new DownloadManager.Query().setFilterById(id));
+        if (c == null) {
+            return null;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            Status s = new Status();
+            s.status = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_STATUS));
+            s.bytesSoFar = c.getLong(
+                    c.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
+            s.totalBytes = c.getLong(c.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
+            s.localPath = c.getString(c.getColumnIndex(DownloadManager.COLUMN_LOCAL_FILENAME));
+            s.uri = c.getString(c.getColumnIndex(DownloadManager.COLUMN_URI));
+            return s;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Cancels the download if it is still running and deletes its partial file
+     */
+    public static void remove(Context context, long id) {
+        remove(context, id, false);
+    }
+
+    /**
+     * Cancels the download if it is still running. Built-in downloads can keep
+     * their partial file, so a later download of the same file resumes it.
+     */
+    public static void remove(Context context, long id, boolean keepPartial) {
+        if (isBuiltin(id)) {
+            StreamingDownload download;
+            synchronized (Downloads.class) {
+                download = sBuiltinDownloads.remove(id);
+            }
+            if (download != null) {
+                download.cancel(keepPartial);
+            }
+            return;
+        }
+
+        DownloadManager dm = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+        dm.remove(id);
+    }
+}
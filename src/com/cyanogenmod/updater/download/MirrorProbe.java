@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cyanogenmod.updater.requests.SharedHttpStack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Orders the mirrors of a build by how quickly they deliver the first bytes of
+ * the file, using a small range request to each of them in parallel.
+ */
+public class MirrorProbe {
+    private static final String TAG = "MirrorProbe";
+
+    private static final int PROBE_SIZE = 64 * 1024;
+
+    private MirrorProbe() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * @return the mirrors that answered, fastest first, followed by the ones
+     *         that didn't in their original order
+     */
+    public static List<String> rank(List<String> urls, final String userAgent) {
+        if (urls.size() <= 1) {
+            return urls;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(urls.size());
+        final HashMap<String, Long> times = new HashMap<String, Long>();
+        try {
+            ArrayList<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (final String url : urls) {
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        return probe(url, userAgent);
+                    }
+                }));
+            }
+            for (int i = 0; i < urls.size(); i++) {
+                try {
+                    times.put(urls.get(i), results.get(i).get());
+                } catch (ExecutionException e) {
+                    Log.d(TAG, "Mirror " + urls.get(i) + " failed: " + e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while probing mirrors", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        ArrayList<String> ranked = new ArrayList<String>(urls);
+        // Stable sort, so unreachable mirrors keep their order at the end
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                Long lhsTime = times.get(lhs);
+                Long rhsTime = times.get(rhs);
+                if (lhsTime == null || rhsTime == null) {
+                    return lhsTime != null ? -1 : (rhsTime != null ? 1 : 0);
+                }
+                return lhsTime.compareTo(rhsTime);
+            }
+        });
+        Log.d(TAG, "Mirrors ranked " + ranked + ", times " + times);
+        return ranked;
+    }
+
+    /**
+     * @return milliseconds it took to connect and read the probe range
+     */
+    private static long probe(String url, String userAgent) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        HttpURLConnection conn = RangeRequest.open(url, userAgent, 0, PROBE_SIZE);
+        InputStream in = null;
+        boolean consumed = false;
+        try {
+            in = conn.getInputStream();
+            byte[] buffer = new byte[PROBE_SIZE];
+            int total = 0;
+            int read;
+            while (total < PROBE_SIZE && (read = in.read(buffer, total, PROBE_SIZE - total)) > 0) {
+                total += read;
+            }
+            // Read to the end, the download can go on on this connection
+            consumed = true;
+            return SystemClock.elapsedRealtime() - start;
+        } finally {
+            if (consumed) {
+                SharedHttpStack.release(in);
+            } else {
+                conn.disconnect();
+            }
+        }
+    }
+}
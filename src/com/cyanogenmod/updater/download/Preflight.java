@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.cyanogenmod.updater.requests.SharedHttpStack;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+
+/**
+ * Makes sure a download fits on the storage before it is queued, and reserves
+ * the space for it once it starts.
+ */
+public class Preflight {
+    private static final String TAG = "Preflight";
+
+    // Left free on the volume, so an update doesn't fill it to the last byte
+    private static final long SPACE_MARGIN = 16 * 1024 * 1024;
+    // Next to a partial file, the number of its bytes that have blocks allocated
+    private static final String RESERVED_SUFFIX = ".reserved";
+
+    private Preflight() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * @return the size of the remote file as reported for a HEAD request,
+     *         or -1 if the server didn't tell
+     */
+    public static long getRemoteSize(String url, String userAgent) {
+        HttpURLConnection conn = null;
+        boolean released = false;
+        try {
+            conn = SharedHttpStack.open(url, userAgent);
+            conn.setRequestMethod("HEAD");
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                Log.d(TAG, "HEAD " + url + " returned " + conn.getResponseCode());
+                return -1;
+            }
+            String length = conn.getHeaderField("Content-Length");
+            // There is no body, so the download can have the connection right away
+            SharedHttpStack.release(conn.getInputStream());
+            released = true;
+            return length != null ? Long.parseLong(length.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to get the size of " + url + ": " + e);
+            return -1;
+        } finally {
+            if (conn != null && !released) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * @return bytes the file still needs on its volume to grow to the given
+     *         size, which is less than that if it was reserved or resumed
+     */
+    public static long getMissingBytes(File file, long size) {
+        if (!file.exists()) {
+            return size;
+        }
+        long reserved = getReservedBytes(file);
+        if (reserved >= 0) {
+            return Math.max(0, size - reserved);
+        }
+        // A file that was given its length without allocating it is sparse,
+        // so only what the resume info counts as written takes space
+        long length = file.length();
+        ResumeInfo resumeInfo = ResumeInfo.load(file);
+        if (resumeInfo != null) {
+            length = Math.min(length, resumeInfo.getLength());
+        }
+        return Math.max(0, size - length);
+    }
+
+    /**
+     * @return whether the volume of the directory can take that many more bytes
+     */
+    public static boolean hasSpaceFor(File directory, long bytes) {
+        long usable = directory.getUsableSpace();
+        Log.d(TAG, "Need " + bytes + " bytes, " + usable + " usable in " + directory);
+        return bytes + SPACE_MARGIN <= usable;
+    }
+
+    /**
+     * Gives the file exactly the given length, with all of its blocks allocated.
+     * Running out of space is reported right away instead of in the middle of
+     * the download, and the file system gets to lay the file out in one go
+     * rather than block by block as it grows.
+     */
+    public static void allocate(File path, RandomAccessFile file, long length)
+            throws IOException {
+        if (file.length() > length) {
+            file.setLength(length);
+        }
+        try {
+            Os.posix_fallocate(file.getFD(), 0, length);
+            setReservedBytes(path, length);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new IOException("Not enough space for " + length + " bytes", e);
+            }
+            // Not supported by the file system, at least the size is right.
+            // Nothing is reserved then, the resume info tells what was written.
+            Log.d(TAG, "Unable to preallocate, errno " + e.errno);
+            release(path);
+            file.setLength(length);
+        }
+    }
+
+    /**
+     * Forgets the reservation of a partial file that was completed or removed
+     */
+    public static void release(File path) {
+        getReservedFile(path).delete();
+    }
+
+    /**
+     * @return the bytes allocated by {@link #allocate}, or -1 if the file
+     *         wasn't allocated and grows as it is written
+     */
+    private static long getReservedBytes(File path) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(getReservedFile(path)));
+            return in.readLong();
+        } catch (FileNotFoundException e) {
+            return -1;
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to read the reservation of " + path + ": " + e);
+            // Assume nothing is reserved, so nothing is counted twice
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+    }
+
+    private static void setReservedBytes(File path, long bytes) {
+        File reservedFile = getReservedFile(path);
+        File tmpFile = new File(reservedFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmpFile));
+            out.writeLong(bytes);
+            out.close();
+            out = null;
+            written = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on saving the reservation of " + path, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+
+        if (written && !tmpFile.renameTo(reservedFile)) {
+            Log.e(TAG, "Unable to replace " + reservedFile);
+        }
+    }
+
+    private static File getReservedFile(File path) {
+        return new File(path.getPath() + RESERVED_SUFFIX);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.util.Log;
+
+import com.cyanogenmod.updater.requests.SharedHttpStack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fetches a single byte range of a remote file with an HTTP Range request and
+ * writes it to the same offset of a local file.
+ */
+public class RangeRequest {
+    private static final String TAG = "RangeRequest";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Notified after every write, may throw to abort the transfer
+     */
+    public interface ProgressListener {
+        void onBytesWritten(int count) throws IOException;
+    }
+
+    private RangeRequest() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * Requests [start, end) of the remote file, or everything from start on if
+     * end is negative.
+     *
+     * @return the connection, ready to read the range from
+     */
+    public static HttpURLConnection open(String url, String userAgent, long start, long end)
+            throws IOException {
+        return open(url, userAgent, start, end, -1, null);
+    }
+
+    /**
+     * Like {@link #open(String, String, long, long)}, but makes sure the range
+     * belongs to the file the rest of the download came from.
+     *
+     * @param total the length of the remote file, or -1 if unknown
+     * @param validator the ETag or Last-Modified of the remote file, sent as
+     *        If-Range, or null
+     */
+    public static HttpURLConnection open(String url, String userAgent, long start, long end,
+            long total, String validator) throws IOException {
+        HttpURLConnection conn = SharedHttpStack.open(url, userAgent);
+        boolean opened = false;
+        try {
+            conn.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? end - 1 : ""));
+            if (validator != null) {
+                conn.setRequestProperty("If-Range", validator);
+            }
+
+            int responseCode = conn.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_OK && validator != null) {
+                // If-Range turns the range into the whole file if it changed
+                throw new IOException(url + " changed since the download started");
+            }
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                // A 200 would mean the server ignores ranges and sends everything
+                throw new IOException("Range not supported, response " + responseCode);
+            }
+            checkContentRange(conn.getHeaderField("Content-Range"), start, end, total);
+            opened = true;
+            return conn;
+        } finally {
+            if (!opened) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Copies [start, end) of the remote file into the channel at the same
+     * position. A range running past the end of the remote file is cut short.
+     *
+     * @return the number of bytes written
+     */
+    public static long fetch(String url, String userAgent, FileChannel channel,
+            long start, long end) throws IOException {
+        return fetch(url, userAgent, channel, start, end, -1, null);
+    }
+
+    /**
+     * @param total the length of the remote file, or -1 if unknown
+     */
+    public static long fetch(String url, String userAgent, FileChannel channel,
+            long start, long end, long total, ProgressListener listener) throws IOException {
+        return copy(open(url, userAgent, start, end, total, null), channel, start, end,
+                listener);
+    }
+
+    /**
+     * Makes sure a 206 carries the requested range, and of a file of the
+     * expected length. The header reads "bytes first-last/total", where the
+     * total may be "*" if the server doesn't know it.
+     */
+    private static void checkContentRange(String value, long start, long end, long total)
+            throws IOException {
+        if (value == null || !value.startsWith("bytes ")) {
+            throw new IOException("Unexpected Content-Range " + value);
+        }
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            throw new IOException("Unexpected Content-Range " + value);
+        }
+
+        long first;
+        long last;
+        String length = value.substring(slash + 1).trim();
+        try {
+            first = Long.parseLong(value.substring(6, dash).trim());
+            last = Long.parseLong(value.substring(dash + 1, slash).trim());
+            if (total >= 0 && !"*".equals(length) && Long.parseLong(length) != total) {
+                throw new IOException("Remote file has " + length + " bytes, expected "
+                        + total);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected Content-Range " + value);
+        }
+        if (first != start || last < first || (end >= 0 && last >= end)) {
+            throw new IOException("Got " + value + " for bytes " + start + "-"
+                    + (end >= 0 ? end - 1 : ""));
+        }
+    }
+
+    /**
+     * Copies the body of a connection returned by {@link #open} into the
+     * channel. The connection is kept alive for the next request if the whole
+     * body could be read, and disconnected otherwise.
+     *
+     * @return the number of bytes written
+     */
+    public static long copy(HttpURLConnection conn, FileChannel channel,
+            long start, long end, ProgressListener listener) throws IOException {
+        InputStream in = null;
+        boolean consumed = false;
+        try {
+            in = conn.getInputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            int read = 0;
+            while (position < end && (read = in.read(buffer, 0,
+                    (int) Math.min(buffer.length, end - position))) > 0) {
+                ByteBuffer src = ByteBuffer.wrap(buffer, 0, read);
+                while (src.hasRemaining()) {
+                    position += channel.write(src, position);
+                }
+                if (listener != null) {
+                    listener.onBytesWritten(read);
+                }
+            }
+
+            Log.v(TAG, "Fetched " + (position - start) + " bytes at " + start + " of "
+                    + conn.getURL());
+            // The body is exactly the range, or ended early at the end of the file
+            consumed = position >= end || read < 0;
+            return position - start;
+        } finally {
+            if (consumed) {
+                SharedHttpStack.release(in);
+            } else {
+                conn.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket shared by all connections of all built-in downloads. Every
+ * transfer takes tokens for the bytes it received and sleeps once the bucket
+ * runs dry, so together they never exceed the rate the policy allows.
+ */
+public class RateLimiter {
+    private static final String TAG = "RateLimiter";
+
+    // How often the policy is asked for the current rate
+    private static final long POLICY_INTERVAL = 2000; // 2 seconds
+
+    /**
+     * Decides on the rate, may look at the network or other traffic
+     */
+    public interface Policy {
+        /**
+         * @return allowed bytes per second, or 0 for no limit
+         */
+        long getRate();
+    }
+
+    private final Policy mPolicy;
+    private long mRate;
+    private long mTokens;
+    private long mLastRefill;
+    private long mLastPolicyCheck = -POLICY_INTERVAL;
+
+    public RateLimiter(Policy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * Accounts for bytes that were just transferred, blocking the calling
+     * thread as long as needed to stay within the rate.
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long waitMs;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            if (now - mLastPolicyCheck >= POLICY_INTERVAL) {
+                updateRate(mPolicy.getRate(), now);
+                mLastPolicyCheck = now;
+            }
+            if (mRate <= 0) {
+                return;
+            }
+
+            // The bucket holds at most a second worth of tokens
+            mTokens = Math.min(mRate, mTokens + (now - mLastRefill) * mRate / 1000);
+            mLastRefill = now;
+
+            // Going into debt lets concurrent callers queue up behind each
+            // other instead of all waking up at the same time
+            mTokens -= bytes;
+            waitMs = mTokens >= 0 ? 0 : -mTokens * 1000 / mRate;
+        }
+
+        if (waitMs > 0) {
+            try {
+                Thread.sleep(waitMs);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    private void updateRate(long rate, long now) {
+        if (rate == mRate) {
+            return;
+        }
+        Log.d(TAG, "Download rate limit " + (rate > 0 ? rate + " bytes/s" : "off"));
+        mRate = rate;
+        mTokens = Math.min(mTokens, rate);
+        mLastRefill = now;
+    }
+}
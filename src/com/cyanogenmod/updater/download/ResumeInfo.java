@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Remembers which remote file a .partial file holds the beginning of, so an
+ * interrupted download can be continued with a range request. It is stored
+ * next to the partial file and only valid while the server still reports the
+ * same validator (ETag, or Last-Modified if there is no strong ETag). With
+ * several connections the file may have holes, so the length of the part that
+ * is known to be complete is stored as well.
+ */
+public class ResumeInfo {
+    private static final String TAG = "ResumeInfo";
+    private static final String SUFFIX = ".resume";
+    private static final int VERSION = 1;
+
+    private final String mUrl;
+    private final String mValidator;
+    private long mLength;
+
+    private ResumeInfo(String url, String validator, long length) {
+        mUrl = url;
+        mValidator = validator;
+        mLength = length;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * Get value for the If-Range header
+     */
+    public String getValidator() {
+        return mValidator;
+    }
+
+    /**
+     * Get number of bytes at the start of the partial file that are complete
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    public void setLength(long length) {
+        mLength = length;
+    }
+
+    /**
+     * @return the resume info of the response, or null if the server gave us
+     *         nothing to make sure a later range comes from the same file
+     */
+    public static ResumeInfo fromResponse(String url, HttpURLConnection conn) {
+        String validator = conn.getHeaderField("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            // Weak ETags are not allowed in If-Range
+            validator = conn.getHeaderField("Last-Modified");
+        }
+        if (TextUtils.isEmpty(validator)) {
+            return null;
+        }
+        return new ResumeInfo(url, validator, 0);
+    }
+
+    /**
+     * @return the resume info stored for the partial file, or null if it can't
+     *         be resumed
+     */
+    public static ResumeInfo load(File partialFile) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(getFile(partialFile)));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            return new ResumeInfo(in.readUTF(), in.readUTF(), in.readLong());
+        } catch (FileNotFoundException e) {
+            // Nothing to resume
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading resume info of " + partialFile, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+    }
+
+    public void save(File partialFile) {
+        File infoFile = getFile(partialFile);
+        File tmpFile = new File(infoFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmpFile));
+            out.writeInt(VERSION);
+            out.writeUTF(mUrl);
+            out.writeUTF(mValidator);
+            out.writeLong(mLength);
+            out.close();
+            out = null;
+            written = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on saving resume info of " + partialFile, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+
+        // Rename over the old info, so a crash never leaves a torn one behind
+        if (written && !tmpFile.renameTo(infoFile)) {
+            Log.e(TAG, "Unable to replace " + infoFile);
+        }
+    }
+
+    public static void delete(File partialFile) {
+        getFile(partialFile).delete();
+    }
+
+    private static File getFile(File partialFile) {
+        return new File(partialFile.getPath() + SUFFIX);
+    }
+}
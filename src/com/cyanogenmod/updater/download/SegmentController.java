@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Decides how large the segments of a built-in download are and over how many
+ * connections they are fetched, based on what the finished segments took.
+ *
+ * Segments are sized so one takes about TARGET_SEGMENT_TIME on a connection,
+ * and never so small that the round trip of its request dominates. The number
+ * of connections works like a congestion window: after every round of
+ * segments, one more is tried as long as that raises the total throughput, a
+ * connection that doesn't help is given up again, and failing connections
+ * halve the window.
+ */
+public class SegmentController {
+    private static final String TAG = "SegmentController";
+
+    public static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    public static final long MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final long INITIAL_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int INITIAL_CONNECTIONS = 2;
+
+    private static final long TARGET_SEGMENT_TIME = 10000; // 10 seconds
+    // A segment should be worth at least this many round trips of transfer
+    private static final int MIN_ROUND_TRIPS = 20;
+    // Relative change of the total throughput that counts as one
+    private static final int SIGNIFICANT_PERCENT = 10;
+    // Rounds without change after which one more connection is tried anyway
+    private static final int PROBE_ROUNDS = 4;
+
+    private final int mMaxConnections;
+
+    private long mSegmentSize = INITIAL_SEGMENT_SIZE;
+    private int mConnections;
+    // Smoothed like TCP does, -1 until the first sample
+    private long mRtt = -1;
+    private long mConnectionThroughput = -1;
+
+    private long mRoundStart = -1;
+    private long mRoundBytes;
+    private int mRoundSegments;
+    private long mThroughput = -1;
+    private boolean mLastRoundGrew;
+    private int mStableRounds;
+
+    public SegmentController(int maxConnections) {
+        mMaxConnections = Math.max(1, maxConnections);
+        mConnections = Math.min(INITIAL_CONNECTIONS, mMaxConnections);
+    }
+
+    public synchronized long getSegmentSize() {
+        return mSegmentSize;
+    }
+
+    public synchronized int getConnections() {
+        return mConnections;
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * @return smoothed time to the response of a range request in ms, or -1
+     */
+    public synchronized long getRtt() {
+        return mRtt;
+    }
+
+    /**
+     * @return total bytes per second over the last round, or -1
+     */
+    public synchronized long getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * Records a finished segment.
+     *
+     * @param rttMs time it took the request to be answered, or -1 if the
+     *        segment was read from a connection that was already open
+     * @param transferMs time spent receiving the segment, without the time
+     *        the rate limiter held it back
+     */
+    public synchronized void onSegmentDone(long bytes, long rttMs, long transferMs) {
+        long now = SystemClock.elapsedRealtime();
+        if (mRoundStart < 0) {
+            mRoundStart = now - transferMs - Math.max(0, rttMs);
+        }
+
+        if (rttMs >= 0) {
+            mRtt = mRtt < 0 ? rttMs : (7 * mRtt + rttMs) / 8;
+        }
+        if (bytes > 0 && transferMs > 0) {
+            long throughput = bytes * 1000 / transferMs;
+            mConnectionThroughput = mConnectionThroughput < 0
+                    ? throughput : (3 * mConnectionThroughput + throughput) / 4;
+            adjustSegmentSize();
+        }
+
+        mRoundBytes += bytes;
+        if (++mRoundSegments >= mConnections && now > mRoundStart) {
+            endRound(mRoundBytes * 1000 / (now - mRoundStart));
+            mRoundStart = now;
+        }
+    }
+
+    /**
+     * Records a connection that failed or was too slow to keep
+     */
+    public synchronized void onSegmentFailed() {
+        if (mConnections > 1) {
+            mConnections = Math.max(1, mConnections / 2);
+            Log.i(TAG, "Connection failed, down to " + this);
+        }
+        resetRound();
+        mLastRoundGrew = false;
+    }
+
+    private void adjustSegmentSize() {
+        long desired = Math.max(mConnectionThroughput * TARGET_SEGMENT_TIME / 1000,
+                mConnectionThroughput * Math.max(0, mRtt) * MIN_ROUND_TRIPS / 1000);
+        long size = mSegmentSize;
+        // Move in steps, so a single odd segment doesn't throw it off
+        if (desired > 2 * size) {
+            size = Math.min(MAX_SEGMENT_SIZE, 2 * size);
+        } else if (desired < size / 2) {
+            size = Math.max(MIN_SEGMENT_SIZE, size / 2);
+        }
+        if (size != mSegmentSize) {
+            mSegmentSize = size;
+            Log.i(TAG, "Segment size now " + this);
+        }
+    }
+
+    private void endRound(long throughput) {
+        long previous = mThroughput;
+        mThroughput = throughput;
+        resetRound();
+
+        long margin = previous * SIGNIFICANT_PERCENT / 100;
+        if (previous < 0 || throughput > previous + margin) {
+            // Still climbing, see if yet another connection helps
+            mStableRounds = 0;
+            grow();
+        } else if (mLastRoundGrew) {
+            // The connection added last didn't help
+            mConnections--;
+            mLastRoundGrew = false;
+            Log.i(TAG, "No gain from more connections, back to " + this);
+        } else if (++mStableRounds >= PROBE_ROUNDS) {
+            // The link may have changed since we last tried
+            mStableRounds = 0;
+            grow();
+        } else {
+            mLastRoundGrew = false;
+        }
+    }
+
+    private void grow() {
+        mLastRoundGrew = mConnections < mMaxConnections;
+        if (mLastRoundGrew) {
+            mConnections++;
+            Log.i(TAG, "Trying " + this);
+        }
+    }
+
+    private void resetRound() {
+        mRoundStart = -1;
+        mRoundBytes = 0;
+        mRoundSegments = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mConnections + "/" + mMaxConnections + " connections, segments of "
+                + mSegmentSize + " bytes, rtt " + mRtt + " ms, "
+                + mConnectionThroughput + " bytes/s per connection, "
+                + mThroughput + " bytes/s total";
+    }
+}
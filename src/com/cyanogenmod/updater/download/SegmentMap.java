@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.TreeMap;
+
+/**
+ * Hands out the not yet claimed part of a file in segments and collects the
+ * finished ones, so they can be processed in order.
+ */
+class SegmentMap {
+    private final long mEnd;
+    // Everything before this has been claimed
+    private long mNext;
+    // Finished segments, start to end
+    private final TreeMap<Long, Long> mDone = new TreeMap<Long, Long>();
+    private IOException mError;
+
+    SegmentMap(long start, long end) {
+        mNext = start;
+        mEnd = end;
+    }
+
+    /**
+     * Claims the next segment. Towards the end of the file segments get
+     * smaller, so the rest is spread over all connections instead of one of
+     * them fetching a large last segment while the others sit idle.
+     *
+     * @return [start, end) of the claimed segment, or null if everything is taken
+     */
+    synchronized long[] claim(long size, int connections) {
+        if (mNext >= mEnd) {
+            return null;
+        }
+        long share = Math.max(SegmentController.MIN_SEGMENT_SIZE,
+                (mEnd - mNext) / Math.max(1, connections));
+        long start = mNext;
+        mNext = Math.min(mEnd, start + Math.min(size, share));
+        return new long[] { start, mNext };
+    }
+
+    /**
+     * Claims the segment starting at the given offset, for a connection that
+     * can simply keep reading.
+     *
+     * @return the end of the claimed segment, or -1 if someone else has it
+     */
+    synchronized long extend(long start, long size) {
+        if (start != mNext || mNext >= mEnd) {
+            return -1;
+        }
+        mNext = Math.min(mEnd, start + size);
+        return mNext;
+    }
+
+    synchronized boolean hasUnclaimed() {
+        return mNext < mEnd;
+    }
+
+    synchronized void complete(long start, long end) {
+        mDone.put(start, end);
+        notifyAll();
+    }
+
+    synchronized void fail(IOException error) {
+        if (mError == null) {
+            mError = error;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits for the segment starting at the given offset to finish
+     *
+     * @return the end of that segment
+     * @throws IOException the error of the first segment that failed
+     */
+    synchronized long awaitSegment(long start) throws IOException {
+        Long end;
+        while ((end = mDone.remove(start)) == null) {
+            if (mError != null) {
+                throw mError;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for segment");
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,946 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.app.DownloadManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cyanogenmod.updater.requests.SharedHttpStack;
+import com.cyanogenmod.updater.utils.MultiDigest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single update zip transfer performed by the app itself instead of the
+ * platform DownloadManager. If the server supports ranges, the file is fetched
+ * in segments over several connections at once and written in place, with a
+ * SegmentController picking segment size and connection count as it goes.
+ * The requested digests are calculated during the transfer, so the completed
+ * file never has to be read back for verification. Builds with
+ * mirrors start on the one that answers fastest and move on to the next one
+ * at the current offset when a connection fails or becomes too slow. Builds
+ * with published block checksums take what they share with zips already on
+ * the device from there and only fetch the rest.
+ */
+public class StreamingDownload {
+    private static final String TAG = "StreamingDownload";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Smaller files aren't worth the extra connections
+    private static final long MIN_SPLIT_SIZE = 4 * 1024 * 1024;
+    // How often the complete length of the partial file is recorded
+    private static final long RESUME_SAVE_INTERVAL = 8 * 1024 * 1024;
+    // Connections slower than this over a whole window move to the next mirror
+    private static final long MIN_THROUGHPUT = 16 * 1024;
+    private static final long THROUGHPUT_WINDOW = 20000; // 20 seconds
+    // Each source gets this many more tries, waiting twice as long each time,
+    // before a connection gives up
+    private static final int MAX_RETRIES_PER_SOURCE = 3;
+    private static final long RETRY_BACKOFF = 1000; // 1 second
+
+    private final long mId;
+    private final String mUrl;
+    private final List<String> mMirrorUrls;
+    private final File mPartialFile;
+    private final String mUserAgent;
+    private final String[] mAlgorithms;
+    private final SegmentController mController;
+    private final RateLimiter mRateLimiter;
+
+    private volatile int mStatus = DownloadManager.STATUS_PENDING;
+    private final AtomicLong mBytesSoFar = new AtomicLong();
+    private volatile long mTotalBytes = -1;
+    private volatile boolean mCancelled;
+    // Set once run() returns, so fetchers still running give up
+    private volatile boolean mFinished;
+    // Guarded by this: whether run() got to the partial file and let go of it
+    // again, and whether the cancelled download's partial file is unwanted
+    private boolean mStarted;
+    private boolean mStopped;
+    private boolean mDiscard;
+    private volatile HashMap<String, String> mCalculatedDigests;
+
+    // The download url and its mirrors, fastest first, and which one is in use
+    private List<String> mSources;
+    private final AtomicInteger mSource = new AtomicInteger();
+    // ETag or Last-Modified of the first response and the source it came from
+    private String mValidator;
+    private String mValidatorSource;
+
+    // Segments of the file and the connections fetching them, including the
+    // initial one while it is still streaming
+    private SegmentMap mSegments;
+    private int mActiveConnections;
+
+    // Block checksums of the file and local files that may share blocks with it
+    private String mBlockMapUrl;
+    private List<File> mSeedFiles;
+
+    StreamingDownload(long id, String url, List<String> mirrorUrls, File partialFile,
+            String userAgent, String[] algorithms, SegmentController controller,
+            RateLimiter rateLimiter) {
+        mId = id;
+        mUrl = url;
+        mMirrorUrls = mirrorUrls;
+        mPartialFile = partialFile;
+        mUserAgent = userAgent;
+        mAlgorithms = algorithms;
+        mController = controller;
+        mRateLimiter = rateLimiter;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public File getPartialFile() {
+        return mPartialFile;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public long getBytesSoFar() {
+        return mBytesSoFar.get();
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Decides on segment size and connection count, its current decisions
+     * can be read from it
+     */
+    public SegmentController getController() {
+        return mController;
+    }
+
+    /**
+     * Digests of the bytes written to the partial file keyed by algorithm,
+     * or null until the transfer completed successfully.
+     */
+    public HashMap<String, String> getCalculatedDigests() {
+        return mCalculatedDigests;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Lets the download copy the blocks it has in common with local files
+     * from them, so only the rest has to be fetched. Without the block
+     * checksums, the whole file is downloaded as usual. Has to be called
+     * before {@link #run}.
+     */
+    public void setBlockReuse(String blockMapUrl, List<File> seedFiles) {
+        mBlockMapUrl = blockMapUrl;
+        mSeedFiles = seedFiles;
+    }
+
+    /**
+     * Stops the transfer. Unless the partial file is kept for a later attempt,
+     * it is deleted along with its resume info and reservation as soon as
+     * nothing writes to it any more, so nothing is left behind.
+     */
+    public synchronized void cancel(boolean keepPartial) {
+        mCancelled = true;
+        if (keepPartial) {
+            return;
+        }
+        mDiscard = true;
+        if (!mStarted || mStopped) {
+            discardPartial();
+        }
+    }
+
+    /**
+     * Performs the transfer on the calling thread.
+     *
+     * @return true if the whole file was written
+     */
+    public boolean run() {
+        synchronized (this) {
+            if (mCancelled) {
+                return false;
+            }
+            mStarted = true;
+        }
+        try {
+            return transfer();
+        } finally {
+            synchronized (this) {
+                mStopped = true;
+                if (mDiscard) {
+                    // The transfer saved its resume info on the way out
+                    discardPartial();
+                }
+            }
+        }
+    }
+
+    private void discardPartial() {
+        mPartialFile.delete();
+        ResumeInfo.delete(mPartialFile);
+        Preflight.release(mPartialFile);
+    }
+
+    private boolean transfer() {
+        MultiDigest digest;
+        try {
+            digest = new MultiDigest(mAlgorithms);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Exception while getting digest", e);
+            mStatus = DownloadManager.STATUS_FAILED;
+            return false;
+        }
+
+        if (mBlockMapUrl != null) {
+            BlockMap map = BlockMap.load(mBlockMapUrl, mUserAgent);
+            if (map != null) {
+                return runWithBlockMap(map, digest);
+            }
+            Log.d(TAG, "No block map, downloading all of " + mUrl);
+        }
+
+        // Continue where an earlier attempt stopped if the partial file it left
+        // behind is still the beginning of the same remote file
+        ResumeInfo resumeInfo = ResumeInfo.load(mPartialFile);
+        long resumeFrom = 0;
+        if (resumeInfo != null && resumeInfo.getUrl().equals(mUrl)) {
+            resumeFrom = Math.min(resumeInfo.getLength(), mPartialFile.length());
+        }
+
+        ArrayList<String> urls = new ArrayList<String>();
+        urls.add(mUrl);
+        urls.addAll(mMirrorUrls);
+        mSources = MirrorProbe.rank(urls, mUserAgent);
+
+        HttpURLConnection conn = null;
+        InputStream in = null;
+        RandomAccessFile out = null;
+        ExecutorService executor = null;
+        long committed = resumeFrom;
+        boolean success = false;
+        try {
+            conn = connect(resumeFrom, resumeInfo);
+            if (conn.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+                mTotalBytes = parseContentRangeTotal(conn.getHeaderField("Content-Range"));
+                Log.d(TAG, "Resuming " + mUrl + " at " + resumeFrom);
+            } else {
+                mTotalBytes = parseContentLength(conn.getHeaderField("Content-Length"));
+                resumeFrom = 0;
+            }
+
+            resumeInfo = ResumeInfo.fromResponse(mUrl, conn);
+            if (resumeInfo == null) {
+                ResumeInfo.delete(mPartialFile);
+            } else {
+                mValidator = resumeInfo.getValidator();
+                mValidatorSource = mSources.get(mSource.get());
+            }
+            committed = resumeFrom;
+            mBytesSoFar.set(resumeFrom);
+            mStatus = DownloadManager.STATUS_RUNNING;
+
+            out = new RandomAccessFile(mPartialFile, "rw");
+            if (mTotalBytes >= 0) {
+                // Anything past resumeFrom is overwritten, the resume info
+                // tells how much of the file is valid
+                Preflight.allocate(mPartialFile, out, mTotalBytes);
+            } else {
+                out.setLength(resumeFrom);
+                // It grows as it is written, an earlier reservation is gone
+                Preflight.release(mPartialFile);
+            }
+            FileChannel channel = out.getChannel();
+
+            // This connection streams the file from the start for as long as
+            // nobody else claimed what comes next, the rest is fetched in
+            // segments over as many connections as the controller allows
+            mSegments = createSegmentMap(conn, resumeFrom);
+            long firstEnd = mTotalBytes >= 0 ? mTotalBytes : Long.MAX_VALUE;
+            if (mSegments != null) {
+                Log.d(TAG, "Fetching " + mUrl + " in segments, " + mController);
+                firstEnd = mSegments.extend(resumeFrom, mController.getSegmentSize());
+                executor = Executors.newCachedThreadPool();
+                mActiveConnections = 1;
+                startSegmentFetchers(executor, channel);
+            }
+
+            // The digests have to start at byte zero, so what we already have
+            // is read back while the other segments are on their way
+            byte[] buffer = new byte[BUFFER_SIZE];
+            digestRange(channel, digest, buffer, 0, resumeFrom);
+
+            in = conn.getInputStream();
+            long position = resumeFrom;
+            long lastSaved = resumeFrom;
+            long segmentStart = resumeFrom;
+            long segmentTime = SystemClock.elapsedRealtime();
+            long segmentThrottled = 0;
+            MirrorCursor cursor = new MirrorCursor();
+            ThroughputMonitor monitor = new ThroughputMonitor();
+            while (position < firstEnd) {
+                int read;
+                try {
+                    read = in.read(buffer, 0, (int) Math.min(buffer.length, firstEnd - position));
+                    if (read <= 0 && mTotalBytes >= 0) {
+                        throw new IOException("Connection closed at " + position);
+                    }
+                } catch (IOException e) {
+                    conn.disconnect();
+                    in = null;
+                    // The range stays open ended, this connection may go on
+                    conn = reconnect(cursor, e, position, -1);
+                    in = conn.getInputStream();
+                    monitor.reset();
+                    continue;
+                }
+                if (read <= 0) {
+                    break;
+                }
+
+                checkCancelled();
+                long throttled = throttle(read);
+                segmentThrottled += throttled;
+                ByteBuffer src = ByteBuffer.wrap(buffer, 0, read);
+                while (src.hasRemaining()) {
+                    position += channel.write(src, position);
+                }
+                digest.update(buffer, 0, read);
+                mBytesSoFar.addAndGet(read);
+
+                // Without a known length there's no telling whether more follows
+                if (monitor.isTooSlow(read, throttled)
+                        && (mTotalBytes < 0 || position < mTotalBytes)) {
+                    conn.disconnect();
+                    in = null;
+                    conn = reconnect(cursor, new IOException("Too slow"), position, -1);
+                    in = conn.getInputStream();
+                }
+
+                if (position == firstEnd && mSegments != null) {
+                    long now = SystemClock.elapsedRealtime();
+                    mController.onSegmentDone(position - segmentStart, -1,
+                            now - segmentTime - segmentThrottled);
+                    segmentStart = position;
+                    segmentTime = now;
+                    segmentThrottled = 0;
+                    // Keep going if the next segment is still free
+                    long next = mSegments.extend(position, mController.getSegmentSize());
+                    if (next > 0) {
+                        firstEnd = next;
+                    }
+                }
+
+                // Only saved once in a while in case we get killed, a
+                // failure saves the exact position below
+                committed = position;
+                if (committed - lastSaved >= RESUME_SAVE_INTERVAL) {
+                    saveResumeInfo(resumeInfo, committed);
+                    lastSaved = committed;
+                }
+            }
+
+            if (firstEnd != Long.MAX_VALUE && position != firstEnd) {
+                Log.e(TAG, "Short read: got " + position + " of " + firstEnd
+                        + " bytes of the first segment");
+                mStatus = DownloadManager.STATUS_FAILED;
+                return false;
+            }
+
+            if (mSegments != null) {
+                // This connection is done, its slot goes to the segments
+                in.close();
+                in = null;
+                conn.disconnect();
+                conn = null;
+                releaseConnection();
+                startSegmentFetchers(executor, channel);
+
+                // Digests need the data in order, so each segment is read back
+                // as soon as everything before it is complete. It is still in the
+                // page cache at that point, so this costs far less than the transfer.
+                while (position < mTotalBytes) {
+                    long segmentEnd = mSegments.awaitSegment(position);
+                    digestRange(channel, digest, buffer, position, segmentEnd);
+                    position = segmentEnd;
+                    committed = position;
+                    if (committed - lastSaved >= RESUME_SAVE_INTERVAL) {
+                        saveResumeInfo(resumeInfo, committed);
+                        lastSaved = committed;
+                    }
+                }
+                Log.d(TAG, "Segments of " + mUrl + " done, " + mController);
+            }
+
+            if (mTotalBytes >= 0 && mBytesSoFar.get() != mTotalBytes) {
+                Log.e(TAG, "Short read: got " + mBytesSoFar.get() + " of "
+                        + mTotalBytes + " bytes");
+                mStatus = DownloadManager.STATUS_FAILED;
+                return false;
+            }
+
+            if (conn != null) {
+                // Read to the end, so the connection can serve the next request
+                SharedHttpStack.release(in);
+                in = null;
+                conn = null;
+            }
+
+            // A failing close means the file is incomplete, so do it before declaring success
+            out.close();
+            out = null;
+
+            ResumeInfo.delete(mPartialFile);
+            Preflight.release(mPartialFile);
+            mCalculatedDigests = digest.finish();
+            mStatus = DownloadManager.STATUS_SUCCESSFUL;
+            success = true;
+            return true;
+        } catch (SocketTimeoutException e) {
+            Log.e(TAG, "Download of " + mUrl + " timed out", e);
+            mStatus = DownloadManager.STATUS_FAILED;
+            return false;
+        } catch (InterruptedIOException e) {
+            Log.d(TAG, "Download " + mId + " cancelled");
+            mStatus = DownloadManager.STATUS_FAILED;
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Download of " + mUrl + " failed", e);
+            mStatus = DownloadManager.STATUS_FAILED;
+            return false;
+        } finally {
+            mFinished = true;
+            if (executor != null) {
+                synchronized (this) {
+                    executor.shutdownNow();
+                }
+            }
+            if (!success) {
+                // Keep the partial file, so the next attempt only needs the rest
+                saveResumeInfo(resumeInfo, committed);
+            }
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore, not much we can do anyway
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore, not much we can do anyway
+                }
+            }
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Puts the file together from the blocks found in the seed files and
+     * fetches the missing ranges. What an earlier attempt left in the partial
+     * file is found the same way, so there is no need for resume info.
+     */
+    private boolean runWithBlockMap(BlockMap map, MultiDigest digest) {
+        ArrayList<String> urls = new ArrayList<String>();
+        urls.add(mUrl);
+        urls.addAll(mMirrorUrls);
+        mSources = MirrorProbe.rank(urls, mUserAgent);
+
+        ArrayList<File> seeds = new ArrayList<File>();
+        File previous = new File(mPartialFile.getPath() + ".old");
+        if (mPartialFile.length() > 0 && mPartialFile.renameTo(previous)) {
+            seeds.add(previous);
+        }
+        seeds.addAll(mSeedFiles);
+        ResumeInfo.delete(mPartialFile);
+
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(mPartialFile, "rw");
+            mTotalBytes = map.getLength();
+            Preflight.allocate(mPartialFile, out, mTotalBytes);
+            FileChannel channel = out.getChannel();
+            mBytesSoFar.set(0);
+            mStatus = DownloadManager.STATUS_RUNNING;
+
+            BlockMatcher matcher = new BlockMatcher(map);
+            RangeRequest.ProgressListener reuseProgress = new RangeRequest.ProgressListener() {
+                @Override
+                public void onBytesWritten(int count) throws IOException {
+                    checkCancelled();
+                    mBytesSoFar.addAndGet(count);
+                }
+            };
+            long reused = 0;
+            for (File seed : seeds) {
+                if (matcher.isComplete()) {
+                    break;
+                }
+                reused += matcher.scan(seed, channel, reuseProgress);
+            }
+
+            final AtomicLong rangeBytes = new AtomicLong();
+            RangeRequest.ProgressListener fetchProgress = new RangeRequest.ProgressListener() {
+                @Override
+                public void onBytesWritten(int count) throws IOException {
+                    checkCancelled();
+                    throttle(count);
+                    rangeBytes.addAndGet(count);
+                    mBytesSoFar.addAndGet(count);
+                }
+            };
+            MirrorCursor cursor = new MirrorCursor();
+            for (long[] range : matcher.getMissingRanges()) {
+                long position = range[0];
+                while (position < range[1]) {
+                    rangeBytes.set(0);
+                    try {
+                        RangeRequest.fetch(cursor.getUrl(), mUserAgent, channel,
+                                position, range[1], mTotalBytes, fetchProgress);
+                        if (rangeBytes.get() == 0) {
+                            throw new IOException("Nothing received at " + position);
+                        }
+                    } catch (SocketTimeoutException e) {
+                        cursor.next(e, position + rangeBytes.get());
+                    } catch (InterruptedIOException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        cursor.next(e, position + rangeBytes.get());
+                    }
+                    // The range is written in order, so go on where it stopped
+                    position += rangeBytes.get();
+                }
+            }
+            Log.d(TAG, "Reused " + reused + " bytes of " + mUrl + ", fetched "
+                    + (mTotalBytes - reused));
+
+            // The file was put together out of order, so the digests have to
+            // read it back
+            digestRange(channel, digest, new byte[BUFFER_SIZE], 0, mTotalBytes);
+
+            // A failing close means the file is incomplete, so do it before declaring success
+            out.close();
+            out = null;
+            Preflight.release(mPartialFile);
+
+            mCalculatedDigests = digest.finish();
+            mStatus = DownloadManager.STATUS_SUCCESSFUL;
+            return true;
+        } catch (SocketTimeoutException e) {
+            Log.e(TAG, "Download of " + mUrl + " timed out", e);
+            mStatus = DownloadManager.STATUS_FAILED;
+            return false;
+        } catch (InterruptedIOException e) {
+            Log.d(TAG, "Download " + mId + " cancelled");
+            mStatus = DownloadManager.STATUS_FAILED;
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Download of " + mUrl + " failed", e);
+            mStatus = DownloadManager.STATUS_FAILED;
+            return false;
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Exception while getting digest", e);
+            mStatus = DownloadManager.STATUS_FAILED;
+            return false;
+        } finally {
+            mFinished = true;
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore, not much we can do anyway
+                }
+            }
+            // Whatever it had in common with the file was copied over
+            previous.delete();
+        }
+    }
+
+    /**
+     * Sends the initial request to the fastest source that accepts it. When
+     * resuming, the response is 206 if the partial file can be continued.
+     */
+    private HttpURLConnection connect(long resumeFrom, ResumeInfo resumeInfo)
+            throws IOException {
+        IOException error = null;
+        for (int i = 0; i < mSources.size() && !mCancelled; i++) {
+            String url = mSources.get(i);
+            HttpURLConnection conn = SharedHttpStack.open(url, mUserAgent);
+            if (resumeFrom > 0) {
+                // If the file changed, If-Range makes the server send all of it
+                conn.setRequestProperty("Range", "bytes=" + resumeFrom + "-");
+                conn.setRequestProperty("If-Range", resumeInfo.getValidator());
+            }
+
+            try {
+                int responseCode = conn.getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_OK
+                        || (responseCode == HttpURLConnection.HTTP_PARTIAL && resumeFrom > 0)) {
+                    mSource.set(i);
+                    return conn;
+                }
+                error = new IOException("Unexpected response " + responseCode + " for " + url);
+            } catch (IOException e) {
+                error = e;
+            }
+            Log.w(TAG, "Unable to download from " + url + ": " + error.getMessage());
+            conn.disconnect();
+        }
+        throw error != null ? error : new InterruptedIOException("Download " + mId + " cancelled");
+    }
+
+    /**
+     * Continues [start, end) on the next mirror that accepts the range
+     */
+    private HttpURLConnection reconnect(MirrorCursor cursor, IOException cause,
+            long start, long end) throws IOException {
+        if (mSegments != null) {
+            mController.onSegmentFailed();
+        }
+        while (true) {
+            cursor.next(cause, start);
+            try {
+                return openRange(cursor.getUrl(), start, end);
+            } catch (IOException e) {
+                cause = e;
+            }
+        }
+    }
+
+    /**
+     * Requests [start, end) of the file, making sure it is still the one the
+     * download started with. Mirrors have validators of their own, so they
+     * only get their ranges checked against the length.
+     */
+    private HttpURLConnection openRange(String url, long start, long end) throws IOException {
+        String validator = url.equals(mValidatorSource) ? mValidator : null;
+        return RangeRequest.open(url, mUserAgent, start, end, mTotalBytes, validator);
+    }
+
+    /**
+     * @return the segments to fetch the file in, or null if it has to be
+     *         streamed in one piece
+     */
+    private SegmentMap createSegmentMap(HttpURLConnection conn, long start) {
+        long remaining = mTotalBytes - start;
+        boolean rangesSupported = start > 0
+                || "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+        if (mController.getMaxConnections() <= 1 || mTotalBytes < 0
+                || remaining < 2 * MIN_SPLIT_SIZE || !rangesSupported) {
+            return null;
+        }
+        return new SegmentMap(start, mTotalBytes);
+    }
+
+    /**
+     * Starts fetchers until the controller's number of connections is reached
+     * or there's nothing left to claim
+     */
+    private synchronized void startSegmentFetchers(ExecutorService executor,
+            FileChannel channel) {
+        while (mActiveConnections < mController.getConnections() && mSegments.hasUnclaimed()
+                && !executor.isShutdown()) {
+            mActiveConnections++;
+            executor.execute(new SegmentFetcher(executor, channel));
+        }
+    }
+
+    private synchronized void releaseConnection() {
+        mActiveConnections--;
+    }
+
+    /**
+     * @return whether the fetcher may take another segment, or has to stop
+     *         because the controller wants fewer connections
+     */
+    private synchronized boolean keepSegmentFetcher() {
+        if (mActiveConnections > mController.getConnections()) {
+            mActiveConnections--;
+            return false;
+        }
+        return true;
+    }
+
+    private void saveResumeInfo(ResumeInfo resumeInfo, long length) {
+        if (resumeInfo != null) {
+            resumeInfo.setLength(length);
+            resumeInfo.save(mPartialFile);
+        }
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (mCancelled || mFinished) {
+            throw new InterruptedIOException("Download " + mId + " cancelled");
+        }
+    }
+
+    /**
+     * @return milliseconds spent waiting for the rate limiter
+     */
+    private long throttle(int bytes) throws InterruptedIOException {
+        if (mRateLimiter == null) {
+            return 0;
+        }
+        long start = SystemClock.elapsedRealtime();
+        mRateLimiter.acquire(bytes);
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private static void digestRange(FileChannel channel, MultiDigest digest, byte[] buffer,
+            long start, long end) throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(buffer);
+        long position = start;
+        while (position < end) {
+            dst.clear();
+            dst.limit((int) Math.min(buffer.length, end - position));
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            digest.update(buffer, 0, read);
+            position += read;
+        }
+    }
+
+    /**
+     * Position of one connection in the list of sources
+     */
+    private class MirrorCursor {
+        private int mIndex = mSource.get();
+        private int mFailures;
+        private long mFailedAt = -1;
+
+        String getUrl() {
+            return mSources.get(mIndex);
+        }
+
+        /**
+         * Moves on to the next source, waiting a while once every source
+         * failed, or rethrows the error if all of them failed too often
+         * without any progress
+         *
+         * @param position where the connection stopped and will continue
+         */
+        void next(IOException cause, long position) throws IOException {
+            if (mCancelled || mTotalBytes < 0) {
+                throw cause;
+            }
+            if (position > mFailedAt) {
+                // Got somewhere since the last failure, so start counting over
+                mFailures = 0;
+                mFailedAt = position;
+            }
+            int sources = mSources.size();
+            if (++mFailures >= sources * (MAX_RETRIES_PER_SOURCE + 1)) {
+                throw cause;
+            }
+
+            // Move the other connections along, unless one of them already did
+            mSource.compareAndSet(mIndex, (mIndex + 1) % sources);
+            mIndex = mSource.get();
+            if (mFailures % sources != 0) {
+                Log.i(TAG, "Switching to " + getUrl() + ": " + cause.getMessage());
+                return;
+            }
+            long delay = RETRY_BACKOFF << (mFailures / sources - 1);
+            Log.i(TAG, "Retrying " + getUrl() + " in " + delay + " ms: "
+                    + cause.getMessage());
+            sleep(delay);
+        }
+
+        private void sleep(long delay) throws InterruptedIOException {
+            long until = SystemClock.elapsedRealtime() + delay;
+            long remaining;
+            while ((remaining = until - SystemClock.elapsedRealtime()) > 0) {
+                checkCancelled();
+                SystemClock.sleep(Math.min(remaining, 500));
+            }
+            checkCancelled();
+        }
+    }
+
+    private class ThroughputMonitor {
+        private long mWindowStart;
+        private long mBytes;
+        private long mThrottled;
+
+        ThroughputMonitor() {
+            reset();
+        }
+
+        void reset() {
+            mWindowStart = SystemClock.elapsedRealtime();
+            mBytes = 0;
+            mThrottled = 0;
+        }
+
+        /**
+         * @return true if a whole window went by below the minimum throughput,
+         *         not counting the time spent in the rate limiter
+         */
+        boolean isTooSlow(int bytes, long throttledMs) {
+            if (mSources.size() <= 1) {
+                // Nowhere to go anyway
+                return false;
+            }
+            mBytes += bytes;
+            mThrottled += throttledMs;
+            long elapsed = SystemClock.elapsedRealtime() - mWindowStart;
+            if (elapsed < THROUGHPUT_WINDOW) {
+                return false;
+            }
+            long active = elapsed - mThrottled;
+            boolean slow = active > 0 && mBytes * 1000 / active < MIN_THROUGHPUT;
+            reset();
+            return slow;
+        }
+    }
+
+    /**
+     * Fetches one segment after the other, on its own connection for each
+     */
+    private class SegmentFetcher implements Runnable, RangeRequest.ProgressListener {
+        private final ExecutorService mExecutor;
+        private final FileChannel mChannel;
+        private final ThroughputMonitor mMonitor = new ThroughputMonitor();
+        private long mEnd;
+        private long mPosition;
+        private long mThrottled;
+
+        SegmentFetcher(ExecutorService executor, FileChannel channel) {
+            mExecutor = executor;
+            mChannel = channel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                MirrorCursor cursor = new MirrorCursor();
+                while (keepSegmentFetcher()) {
+                    long[] segment = mSegments.claim(mController.getSegmentSize(),
+                            mController.getConnections());
+                    if (segment == null) {
+                        releaseConnection();
+                        return;
+                    }
+                    fetch(cursor, segment[0], segment[1]);
+                    mSegments.complete(segment[0], segment[1]);
+                    // The controller may allow more connections by now
+                    startSegmentFetchers(mExecutor, mChannel);
+                }
+            } catch (IOException e) {
+                releaseConnection();
+                mSegments.fail(e);
+            }
+        }
+
+        private void fetch(MirrorCursor cursor, long start, long end) throws IOException {
+            mPosition = start;
+            mEnd = end;
+            while (true) {
+                try {
+                    long requested = SystemClock.elapsedRealtime();
+                    HttpURLConnection conn =
+                            openRange(cursor.getUrl(), mPosition, mEnd);
+                    long answered = SystemClock.elapsedRealtime();
+                    long first = mPosition;
+                    mThrottled = 0;
+                    RangeRequest.copy(conn, mChannel, mPosition, mEnd, this);
+                    if (mPosition >= mEnd) {
+                        mController.onSegmentDone(mPosition - first, answered - requested,
+                                SystemClock.elapsedRealtime() - answered - mThrottled);
+                        return;
+                    }
+                    throw new IOException("Connection closed at " + mPosition);
+                } catch (SocketTimeoutException e) {
+                    // A stalled connection, not a cancellation
+                    retry(cursor, e);
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    retry(cursor, e);
+                }
+            }
+        }
+
+        /**
+         * Continues where this one stopped on the next mirror
+         */
+        private void retry(MirrorCursor cursor, IOException cause) throws IOException {
+            mController.onSegmentFailed();
+            cursor.next(cause, mPosition);
+            mMonitor.reset();
+        }
+
+        @Override
+        public void onBytesWritten(int count) throws IOException {
+            checkCancelled();
+            long throttled = throttle(count);
+            mThrottled += throttled;
+            mBytesSoFar.addAndGet(count);
+            mPosition += count;
+            if (mMonitor.isTooSlow(count, throttled) && mPosition < mEnd) {
+                throw new IOException("Too slow");
+            }
+        }
+    }
+
+    /**
+     * @return the complete length from a "bytes start-end/total" header, or -1
+     */
+    private static long parseContentRangeTotal(String value) {
+        if (value == null) {
+            return -1;
+        }
+        int slash = value.lastIndexOf('/');
+        return slash >= 0 ? parseContentLength(value.substring(slash + 1)) : -1;
+    }
+
+    private static long parseContentLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
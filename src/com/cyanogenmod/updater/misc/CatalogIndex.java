@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.misc;
+
+import android.text.TextUtils;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Read-only view of a stored update list. The snapshot written by
+ * {@link State} starts with a fixed-width index of its entries, so the date,
+ * API level and type of an update are read straight from the mapped file, and
+ * an {@link UpdateInfo} is only decoded when it is asked for. Changes from the
+ * journal are kept on top: removed snapshot entries are skipped, added ones
+ * are held as objects.
+ *
+ * Once built, an index is not changed any more and may be read from any thread.
+ */
+public class CatalogIndex {
+    // Per entry: offset of the update in the payload, build date, API level,
+    // type and hash code of the file name
+    static final int ENTRY_SIZE = 24;
+    static final int OFFSET = 0;
+    static final int DATE = 4;
+    static final int API_LEVEL = 12;
+    static final int TYPE = 16;
+    static final int FILE_NAME_HASH = 20;
+    // The payload starts with the number of entries, then the index
+    static final int INDEX_START = 4;
+
+    private static final UpdateInfo.Type[] TYPES = UpdateInfo.Type.values();
+
+    private final ByteBuffer mPayload;
+    private final int mCount;
+    // Snapshot entries that weren't removed, null while that's all of them
+    private int[] mLive;
+    private int mLiveCount;
+    private final ArrayList<UpdateInfo> mAdded = new ArrayList<UpdateInfo>();
+
+    /**
+     * @param payload the snapshot after its header, or null for an index of
+     *        only added updates
+     */
+    CatalogIndex(ByteBuffer payload) throws IOException {
+        mPayload = payload;
+        if (payload == null) {
+            mCount = 0;
+            return;
+        }
+
+        mCount = payload.getInt(0);
+        if (mCount < 0 || INDEX_START + (long) mCount * ENTRY_SIZE > payload.limit()) {
+            throw new IOException("Index of " + mCount + " entries exceeds the file");
+        }
+        for (int i = 0; i < mCount; i++) {
+            int offset = payload.getInt(position(i) + OFFSET);
+            if (offset < INDEX_START + mCount * ENTRY_SIZE || offset >= payload.limit()) {
+                throw new IOException("Entry " + i + " at " + offset + " is out of bounds");
+            }
+        }
+        mLiveCount = mCount;
+    }
+
+    static CatalogIndex of(List<UpdateInfo> updates) {
+        CatalogIndex index;
+        try {
+            index = new CatalogIndex(null);
+        } catch (IOException e) {
+            // Not reached without a payload
+            throw new IllegalStateException(e);
+        }
+        index.mAdded.addAll(updates);
+        return index;
+    }
+
+    public int size() {
+        return mLiveCount + mAdded.size();
+    }
+
+    public long getDate(int i) {
+        if (i >= mLiveCount) {
+            return mAdded.get(i - mLiveCount).getDate();
+        }
+        return mPayload.getLong(position(snapshotEntry(i)) + DATE);
+    }
+
+    public int getApiLevel(int i) {
+        if (i >= mLiveCount) {
+            return mAdded.get(i - mLiveCount).getApiLevel();
+        }
+        return mPayload.getInt(position(snapshotEntry(i)) + API_LEVEL);
+    }
+
+    public UpdateInfo.Type getType(int i) {
+        if (i >= mLiveCount) {
+            return mAdded.get(i - mLiveCount).getType();
+        }
+        int type = mPayload.get(position(snapshotEntry(i)) + TYPE) & 0xff;
+        return type < TYPES.length ? TYPES[type] : UpdateInfo.Type.UNKNOWN;
+    }
+
+    public boolean isNewerThanInstalled(int i) {
+        return UpdateInfo.isNewerThanInstalled(getApiLevel(i), getDate(i));
+    }
+
+    /**
+     * Decodes one update. The result isn't kept, so callers that need it
+     * more than once should hold on to it.
+     */
+    public UpdateInfo get(int i) {
+        if (i >= mLiveCount) {
+            return mAdded.get(i - mLiveCount);
+        }
+        ByteBuffer in = mPayload.duplicate();
+        in.position(mPayload.getInt(position(snapshotEntry(i)) + OFFSET));
+        try {
+            return State.readEntry(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt catalog entry " + i, e);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalStateException("Truncated catalog entry " + i, e);
+        }
+    }
+
+    public LinkedList<UpdateInfo> getAll() {
+        LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
+        for (int i = 0; i < size(); i++) {
+            updates.add(get(i));
+        }
+        return updates;
+    }
+
+    /**
+     * @return the updates newer than the installed build, without decoding
+     *         any of the others
+     */
+    public LinkedList<UpdateInfo> getNewerThanInstalled() {
+        LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
+        for (int i = 0; i < size(); i++) {
+            if (isNewerThanInstalled(i)) {
+                updates.add(get(i));
+            }
+        }
+        return updates;
+    }
+
+    /**
+     * @return the newest update that is newer than the installed build, or
+     *         null if there is none. Only that one is decoded.
+     */
+    public UpdateInfo getNewestNewerThanInstalled() {
+        int newest = -1;
+        for (int i = 0; i < size(); i++) {
+            if (isNewerThanInstalled(i) && (newest < 0 || getDate(i) > getDate(newest))) {
+                newest = i;
+            }
+        }
+        return newest >= 0 ? get(newest) : null;
+    }
+
+    /**
+     * @return whether the list holds an update equal to the given one, only
+     *         decoding those with the same file name
+     */
+    public boolean contains(UpdateInfo ui) {
+        for (int i = 0; i < size(); i++) {
+            if (hasFileName(i, ui.getFileName()) && ui.equals(get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int countNewerThanInstalled() {
+        int count = 0;
+        for (int i = 0; i < size(); i++) {
+            if (isNewerThanInstalled(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return whether the list would be stored the same as this index, field
+     *         by field and in the same order. Snapshot entries are compared
+     *         in their stored form, without decoding them.
+     */
+    boolean sameEntries(List<UpdateInfo> updates) {
+        if (updates.size() != size()) {
+            return false;
+        }
+        int i = 0;
+        for (UpdateInfo ui : updates) {
+            if (getDate(i) != ui.getDate()) {
+                return false;
+            }
+            byte[] encoded = State.encodeEntry(ui);
+            if (i >= mLiveCount) {
+                if (!Arrays.equals(encoded, State.encodeEntry(mAdded.get(i - mLiveCount)))) {
+                    return false;
+                }
+            } else {
+                int offset = mPayload.getInt(position(snapshotEntry(i)) + OFFSET);
+                if (encoded.length > mPayload.limit() - offset) {
+                    return false;
+                }
+                for (int j = 0; j < encoded.length; j++) {
+                    if (mPayload.get(offset + j) != encoded[j]) {
+                        return false;
+                    }
+                }
+            }
+            i++;
+        }
+        return true;
+    }
+
+    /**
+     * Drops all updates with the file name, for a journal record
+     */
+    void remove(String fileName) {
+        int hash = hash(fileName);
+        int live = 0;
+        int[] entries = new int[mLiveCount];
+        for (int i = 0; i < mLiveCount; i++) {
+            int entry = snapshotEntry(i);
+            if (mPayload.getInt(position(entry) + FILE_NAME_HASH) != hash
+                    || !TextUtils.equals(fileName, readFileName(entry))) {
+                entries[live++] = entry;
+            }
+        }
+        if (live != mLiveCount) {
+            mLive = entries;
+            mLiveCount = live;
+        }
+
+        for (int i = mAdded.size() - 1; i >= 0; i--) {
+            if (TextUtils.equals(fileName, mAdded.get(i).getFileName())) {
+                mAdded.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Adds an update, for a journal record
+     */
+    void add(UpdateInfo ui) {
+        mAdded.add(ui);
+    }
+
+    static int hash(String fileName) {
+        return fileName != null ? fileName.hashCode() : 0;
+    }
+
+    static int position(int entry) {
+        return INDEX_START + entry * ENTRY_SIZE;
+    }
+
+    private boolean hasFileName(int i, String fileName) {
+        if (i >= mLiveCount) {
+            return TextUtils.equals(fileName, mAdded.get(i - mLiveCount).getFileName());
+        }
+        int entry = snapshotEntry(i);
+        return mPayload.getInt(position(entry) + FILE_NAME_HASH) == hash(fileName)
+                && TextUtils.equals(fileName, readFileName(entry));
+    }
+
+    private int snapshotEntry(int i) {
+        return mLive != null ? mLive[i] : i;
+    }
+
+    private String readFileName(int entry) {
+        ByteBuffer in = mPayload.duplicate();
+        in.position(mPayload.getInt(position(entry) + OFFSET));
+        try {
+            // The file name follows the UI name
+            State.skipString(in);
+            return State.readString(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt catalog entry " + entry, e);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalStateException("Truncated catalog entry " + entry, e);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.misc;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Serializable;
+
+/**
+ * SHA-256 digests of fixed size blocks of an update zip, as optionally
+ * published by the server next to the whole-file md5sum. They allow pinning
+ * down which parts of a download are corrupt.
+ */
+public class ChunkManifest implements Serializable {
+    private static final long serialVersionUID = 3169472532581349285L;
+    private static final String TAG = "ChunkManifest";
+
+    private static final String KEY_CHUNK_SIZE = "chunk_size";
+    private static final String KEY_CHUNK_SHA256 = "chunk_sha256";
+
+    private final long mChunkSize;
+    private final String[] mDigests;
+
+    public ChunkManifest(long chunkSize, String[] digests) {
+        mChunkSize = chunkSize;
+        mDigests = digests;
+    }
+
+    /**
+     * Get size of every chunk but the last one
+     */
+    public long getChunkSize() {
+        return mChunkSize;
+    }
+
+    public int getChunkCount() {
+        return mDigests.length;
+    }
+
+    /**
+     * Get SHA-256 of the given chunk
+     */
+    public String getDigest(int chunk) {
+        return mDigests[chunk];
+    }
+
+    /**
+     * Reads the manifest from a build JSON object.
+     *
+     * @return the manifest, or null if the build does not have one
+     */
+    public static ChunkManifest fromJSON(JSONObject obj) {
+        if (!obj.has(KEY_CHUNK_SIZE) || !obj.has(KEY_CHUNK_SHA256)) {
+            return null;
+        }
+
+        try {
+            long chunkSize = obj.getLong(KEY_CHUNK_SIZE);
+            JSONArray list = obj.getJSONArray(KEY_CHUNK_SHA256);
+            if (chunkSize <= 0 || list.length() == 0) {
+                return null;
+            }
+            String[] digests = new String[list.length()];
+            for (int i = 0; i < digests.length; i++) {
+                digests[i] = list.getString(i);
+            }
+            return new ChunkManifest(chunkSize, digests);
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid chunk manifest", e);
+            return null;
+        }
+    }
+
+    public static ChunkManifest fromJSONString(String json) {
+        if (TextUtils.isEmpty(json)) {
+            return null;
+        }
+        try {
+            return fromJSON(new JSONObject(json));
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid chunk manifest", e);
+            return null;
+        }
+    }
+
+    public String toJSONString() {
+        try {
+            JSONArray list = new JSONArray();
+            for (String digest : mDigests) {
+                list.put(digest);
+            }
+            JSONObject obj = new JSONObject();
+            obj.put(KEY_CHUNK_SIZE, mChunkSize);
+            obj.put(KEY_CHUNK_SHA256, list);
+            return obj.toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "Unable to serialize chunk manifest", e);
+            return null;
+        }
+    }
+}
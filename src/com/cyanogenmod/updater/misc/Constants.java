@@ -13,14 +13,17 @@ public class Constants {
     // Download related
     public static final String UPDATES_FOLDER = "cmupdater";
     public static final String DOWNLOAD_ID = "download_id";
-    public static final String DOWNLOAD_MD5 = "download_md5";
-    public static final String DOWNLOAD_INCREMENTAL_FOR = "download_incremental_for";
 
     // Preferences
     public static final String ENABLE_PREF = "pref_enable_updates";
     public static final String UPDATE_CHECK_PREF = "pref_update_check_interval";
     public static final String UPDATE_TYPE_PREF = "pref_update_types";
+    public static final String PREFETCH_PREF = "pref_prefetch_updates";
     public static final String LAST_UPDATE_CHECK_PREF = "pref_last_update_check";
+    // Validators of the last update list and the request they answered
+    public static final String LAST_UPDATE_ETAG_PREF = "pref_last_update_etag";
+    public static final String LAST_UPDATE_MODIFIED_PREF = "pref_last_update_modified";
+    public static final String LAST_UPDATE_REQUEST_PREF = "pref_last_update_request";
 
     // Update Check items
     public static final String BOOT_CHECK_COMPLETED = "boot_check_completed";
@@ -34,11 +34,10 @@ import com.cyanogenmod.updater.utils.Utils;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.concurrent.ExecutionException;
 
 public class FetchChangeLogTask extends AsyncTask<UpdateInfo, Void, Void>
@@ -128,14 +127,14 @@ public class FetchChangeLogTask extends AsyncTask<UpdateInfo, Void, Void>
             }
         };
         // We need to make a blocking request here
-        RequestFuture<String> future = RequestFuture.newFuture();
+        RequestFuture<Reader> future = RequestFuture.newFuture();
         ChangeLogRequest request = new ChangeLogRequest(Request.Method.GET, info.getChangelogUrl(),
                 Utils.getUserAgentString(mContext), future, errorListener);
         request.setTag(TAG);
 
         ((UpdateApplication) mContext.getApplicationContext()).getQueue().add(request);
         try {
-            String response = future.get();
+            Reader response = future.get();
             parseChangeLogFromResponse(info, response);
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -144,7 +143,7 @@ public class FetchChangeLogTask extends AsyncTask<UpdateInfo, Void, Void>
         }
     }
 
-    private void parseChangeLogFromResponse(UpdateInfo info, String response) {
+    private void parseChangeLogFromResponse(UpdateInfo info, Reader response) {
         boolean finished = false;
         BufferedReader reader = null;
         BufferedWriter writer = null;
@@ -152,8 +151,7 @@ public class FetchChangeLogTask extends AsyncTask<UpdateInfo, Void, Void>
         try {
             writer = new BufferedWriter(
                     new FileWriter(info.getChangeLogFile(mContext)));
-            ByteArrayInputStream bais = new ByteArrayInputStream(response.getBytes());
-            reader = new BufferedReader(new InputStreamReader(bais), 2 * 1024);
+            reader = new BufferedReader(response, 2 * 1024);
             boolean categoryMatch = false, hasData = false;
             String line;
 
@@ -12,78 +12,759 @@ package com.cyanogenmod.updater.misc;
 import android.content.Context;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
 
+/**
+ * Stores the update list of the last check. The file starts with a header of
+ * a magic number, the format version, the length of the payload and its
+ * CRC32. The payload is the number of updates, a fixed-width index of them
+ * described in {@link CatalogIndex}, and then their fields, with numbers as
+ * varints and strings as their UTF-8 bytes prefixed by a varint of their
+ * length plus one, so zero stands for null. The file is mapped rather than
+ * read, and updates are decoded from it as they are needed. Files written by
+ * older versions, with Java serialization or without the index, are
+ * converted when they are loaded.
+ *
+ * Checks don't rewrite that snapshot, they append the changes to a journal
+ * next to it: a record removes all updates with a file name, or adds one
+ * update. Its header names the snapshot it applies to by the length and CRC32
+ * of the snapshot's payload, so a journal that outlived its snapshot is
+ * ignored. Every record has its own CRC32, and replaying stops at the first
+ * broken one. Once the journal grows past half of the snapshot, or
+ * MIN_COMPACT_SIZE, it is folded into a new snapshot in the background, so
+ * the bytes written stay proportional to the changes.
+ */
 public class State {
     private static final String TAG = "State";
     private static final String FILENAME = "cmupdater.state";
+    private static final String JOURNAL_FILENAME = "cmupdater.journal";
+
+    private static final int MAGIC = 0x434d5553;
+    private static final int JOURNAL_MAGIC = 0x434d554a;
+    private static final int VERSION = 2;
+    // Without the index, the payload starts with the count as varint
+    private static final int VERSION_LIST = 1;
+    private static final int JOURNAL_VERSION = 1;
+    // Magic, version, then the length and CRC32 of the snapshot payload
+    private static final int HEADER_SIZE = 13;
+
+    private static final int RECORD_REMOVE = 1;
+    private static final int RECORD_ADD = 2;
+    // Type, up to 5 bytes of varint length and the CRC32
+    private static final int MAX_RECORD_HEADER_SIZE = 10;
+
+    private static final long MIN_COMPACT_SIZE = 64 * 1024;
+
+    private static boolean sCompacting;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
-    public static void saveState(Context context, LinkedList<UpdateInfo> availableUpdates) {
-        ObjectOutputStream oos = null;
+    /**
+     * @return whether there is a stored update list, even if it's empty
+     */
+    public static boolean hasState(Context context) {
+        return new File(context.getCacheDir(), FILENAME).exists();
+    }
+
+    /**
+     * Stores the update list as it is after a check. Only what changed since
+     * the stored list is appended to the journal.
+     *
+     * @return whether the list is on disk
+     */
+    public static synchronized boolean updateState(final Context context,
+            List<UpdateInfo> availableUpdates) {
+        Catalog stored = load(context);
+        if (stored == null || stored.journalBroken) {
+            return saveState(context, availableUpdates);
+        }
+
+        // Updates are replaced by file name, all of the ones with that name at once
+        HashMap<String, List<UpdateInfo>> before = groupByFileName(stored.index.getAll());
+        HashMap<String, List<UpdateInfo>> after = groupByFileName(availableUpdates);
+        Encoder out = new Encoder(stored.journalLength == 0 ? HEADER_SIZE : 0);
+        int changes = 0;
+        for (Map.Entry<String, List<UpdateInfo>> entry : before.entrySet()) {
+            if (!after.containsKey(entry.getKey())) {
+                writeRecord(out, RECORD_REMOVE, entry.getKey(), null);
+                changes++;
+            }
+        }
+        for (Map.Entry<String, List<UpdateInfo>> entry : after.entrySet()) {
+            List<UpdateInfo> previous = before.get(entry.getKey());
+            if (sameEntries(entry.getValue(), previous)) {
+                continue;
+            }
+            if (previous != null) {
+                writeRecord(out, RECORD_REMOVE, entry.getKey(), null);
+            }
+            for (UpdateInfo ui : entry.getValue()) {
+                writeRecord(out, RECORD_ADD, null, ui);
+            }
+            changes++;
+        }
+        if (changes == 0) {
+            return true;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(out.mData, 0, out.mLength);
+        if (stored.journalLength == 0) {
+            buffer.putInt(0, JOURNAL_MAGIC);
+            buffer.put(4, (byte) JOURNAL_VERSION);
+            buffer.putLong(5, stored.snapshotId);
+        }
+        File journal = new File(context.getCacheDir(), JOURNAL_FILENAME);
         FileOutputStream fos = null;
         try {
-            File f = new File(context.getCacheDir(), FILENAME);
-            fos = new FileOutputStream(f);
-            oos = new ObjectOutputStream(fos);
-            oos.writeObject(availableUpdates);
-            oos.flush();
+            fos = new FileOutputStream(journal, true);
+            FileChannel channel = fos.getChannel();
+            // Drop whatever follows the last complete record
+            channel.truncate(stored.journalLength);
+            channel.position(stored.journalLength);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on appending to the journal", e);
+            return saveState(context, availableUpdates);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+
+        long journalLength = stored.journalLength + out.mLength;
+        Log.d(TAG, "Journaled " + changes + " changes, " + journalLength + " bytes");
+        if (journalLength > Math.max(MIN_COMPACT_SIZE, stored.snapshotLength / 2)
+                && !sCompacting) {
+            sCompacting = true;
+            new Thread() {
+                @Override
+                public void run() {
+                    compact(context);
+                }
+            }.start();
+        }
+        return true;
+    }
+
+    /**
+     * Folds the journal into a new snapshot
+     */
+    static synchronized void compact(Context context) {
+        sCompacting = false;
+        Catalog stored = load(context);
+        if (stored != null && stored.journalLength > 0) {
+            Log.d(TAG, "Compacting " + stored.journalLength + " bytes of journal");
+            saveState(context, stored.index.getAll());
+        }
+    }
+
+    /**
+     * Replaces the stored update list as a whole
+     *
+     * @return whether the new snapshot replaced the stored one
+     */
+    public static synchronized boolean saveState(Context context,
+            List<UpdateInfo> availableUpdates) {
+        File f = new File(context.getCacheDir(), FILENAME);
+        File tmpFile = new File(f.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        boolean written = false;
+        try {
+            ByteBuffer buffer = encode(availableUpdates);
+            fos = new FileOutputStream(tmpFile);
+            FileChannel channel = fos.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            fos.close();
+            fos = null;
+            written = true;
         } catch (IOException e) {
             Log.e(TAG, "Exception on saving instance state", e);
         } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+
+        if (!written) {
+            tmpFile.delete();
+            return false;
+        }
+        if (!tmpFile.renameTo(f)) {
+            Log.e(TAG, "Unable to replace " + f);
+            tmpFile.delete();
+            return false;
+        }
+        // Whatever was journaled is part of the new snapshot
+        new File(context.getCacheDir(), JOURNAL_FILENAME).delete();
+        return true;
+    }
+
+    public static synchronized LinkedList<UpdateInfo> loadState(Context context) {
+        return loadIndex(context).getAll();
+    }
+
+    /**
+     * @return the stored update list, empty if there is none
+     */
+    public static synchronized CatalogIndex loadIndex(Context context) {
+        Catalog stored = load(context);
+        return stored != null ? stored.index : CatalogIndex.of(new ArrayList<UpdateInfo>());
+    }
+
+    /**
+     * The stored update list, and what is known about its files
+     */
+    private static class Catalog {
+        CatalogIndex index;
+        long snapshotId;
+        int snapshotLength;
+        // Bytes of the journal up to the end of the last valid record, 0 if
+        // there is no journal for this snapshot
+        long journalLength;
+        boolean journalBroken;
+    }
+
+    /**
+     * @return the snapshot with the journal replayed onto it, or null if
+     *         there is no usable snapshot
+     */
+    private static Catalog load(Context context) {
+        File f = new File(context.getCacheDir(), FILENAME);
+        ByteBuffer buffer;
+        try {
+            buffer = mapFile(f);
+        } catch (FileNotFoundException e) {
+            Log.i(TAG, "No state info stored");
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading state", e);
+            return null;
+        }
+
+        LinkedList<UpdateInfo> legacy = null;
+        try {
+            if (buffer.remaining() >= 4 && buffer.getInt(0) != MAGIC) {
+                legacy = loadLegacyState(f);
+            } else if (buffer.remaining() > 4 && (buffer.get(4) & 0xff) == VERSION_LIST) {
+                // Its journal has to be applied before it's converted
+                Catalog old = new Catalog();
+                old.index = CatalogIndex.of(decodeList(readFile(f)));
+                old.snapshotId = buffer.getLong(5);
+                replayJournal(context, old);
+                legacy = old.index.getAll();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to convert state file: " + e.getMessage());
+        } catch (BufferUnderflowException e) {
+            Log.d(TAG, "Truncated state file", e);
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "Unexpected state file format", e);
+        }
+        if (legacy != null) {
+            Log.i(TAG, "Converting the state of " + legacy.size() + " updates");
+            if (saveState(context, legacy)) {
+                return load(context);
+            }
+            // Keep what was read; the next update rewrites the file as a whole
+            Catalog converted = new Catalog();
+            converted.index = CatalogIndex.of(legacy);
+            converted.journalBroken = true;
+            return converted;
+        }
+
+        Catalog catalog = new Catalog();
+        try {
+            catalog.index = new CatalogIndex(checkSnapshot(buffer));
+        } catch (IOException e) {
+            Log.d(TAG, "Unexpected state file format: " + e.getMessage());
+            return null;
+        } catch (BufferUnderflowException e) {
+            Log.d(TAG, "Truncated state file", e);
+            return null;
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "Unexpected state file format", e);
+            return null;
+        }
+        catalog.snapshotId = buffer.getLong(5);
+        catalog.snapshotLength = buffer.limit();
+        replayJournal(context, catalog);
+        return catalog;
+    }
+
+    private static void replayJournal(Context context, Catalog catalog) {
+        File journal = new File(context.getCacheDir(), JOURNAL_FILENAME);
+        try {
+            replay(readFile(journal), catalog);
+        } catch (FileNotFoundException e) {
+            // Nothing changed since the snapshot
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading the journal", e);
+            catalog.journalBroken = true;
+        }
+    }
+
+    private static void replay(ByteBuffer in, Catalog catalog) {
+        if (in.remaining() < HEADER_SIZE || in.getInt() != JOURNAL_MAGIC
+                || (in.get() & 0xff) != JOURNAL_VERSION || in.getLong() != catalog.snapshotId) {
+            // Left over from an older snapshot, start over
+            Log.d(TAG, "Ignoring journal of another snapshot");
+            return;
+        }
+
+        int records = 0;
+        CRC32 crc = new CRC32();
+        while (in.hasRemaining()) {
+            int start = in.position();
             try {
-                if (oos != null) {
-                    oos.close();
+                int type = in.get() & 0xff;
+                int length = (int) readVarint(in);
+                int checksum = in.getInt();
+                if (length < 0) {
+                    throw new IOException("Malformed record length");
                 }
-                if (fos != null) {
-                    fos.close();
+                if (length > in.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                crc.reset();
+                crc.update(in.array(), in.arrayOffset() + in.position(), length);
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("Checksum mismatch");
+                }
+
+                ByteBuffer record = ByteBuffer.wrap(in.array(),
+                        in.arrayOffset() + in.position(), length).slice();
+                in.position(in.position() + length);
+                if (type == RECORD_REMOVE) {
+                    catalog.index.remove(readString(record));
+                } else if (type == RECORD_ADD) {
+                    catalog.index.add(readEntry(record));
+                } else {
+                    throw new IOException("Unknown record type " + type);
                 }
             } catch (IOException e) {
-                // ignored, can't do anything anyway
+                Log.w(TAG, "Journal is broken at byte " + start + ": " + e.getMessage());
+                catalog.journalBroken = true;
+                break;
+            } catch (BufferUnderflowException e) {
+                // Most likely a record that was cut off, the next append replaces it
+                Log.d(TAG, "Journal ends in a partial record at byte " + start);
+                break;
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Journal has a malformed record at byte " + start, e);
+                catalog.journalBroken = true;
+                break;
             }
+            catalog.journalLength = in.position();
+            records++;
         }
+        if (catalog.journalLength == 0) {
+            // A header without records still counts
+            catalog.journalLength = HEADER_SIZE;
+        }
+        Log.d(TAG, "Replayed " + records + " journal records");
     }
 
-    @SuppressWarnings("unchecked")
-    public static LinkedList<UpdateInfo> loadState(Context context) {
-        LinkedList<UpdateInfo> availableUpdates = new LinkedList<UpdateInfo>();
-        ObjectInputStream ois = null;
+    private static ByteBuffer mapFile(File f) throws IOException {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(f);
+            FileChannel channel = fis.getChannel();
+            // The mapping stays valid after the file is closed, or replaced
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer readFile(File f) throws IOException {
         FileInputStream fis = null;
         try {
-            File f = new File(context.getCacheDir(), FILENAME);
             fis = new FileInputStream(f);
-            ois = new ObjectInputStream(fis);
+            FileChannel channel = fis.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(f + " too large: " + size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+    }
+
+    private static HashMap<String, List<UpdateInfo>> groupByFileName(List<UpdateInfo> updates) {
+        HashMap<String, List<UpdateInfo>> groups = new HashMap<String, List<UpdateInfo>>();
+        for (UpdateInfo ui : updates) {
+            List<UpdateInfo> group = groups.get(ui.getFileName());
+            if (group == null) {
+                group = new ArrayList<UpdateInfo>();
+                groups.put(ui.getFileName(), group);
+            }
+            group.add(ui);
+        }
+        return groups;
+    }
+
+    /**
+     * @return whether both lists would be stored the same, field by field and
+     *         in the same order
+     */
+    static boolean sameEntries(List<UpdateInfo> a, List<UpdateInfo> b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a.size() != b.size()) {
+            return false;
+        }
+        Encoder first = new Encoder(0);
+        for (UpdateInfo ui : a) {
+            writeEntry(first, ui);
+        }
+        Encoder second = new Encoder(0);
+        for (UpdateInfo ui : b) {
+            writeEntry(second, ui);
+        }
+        if (first.mLength != second.mLength) {
+            return false;
+        }
+        for (int i = 0; i < first.mLength; i++) {
+            if (first.mData[i] != second.mData[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
+    private static void writeRecord(Encoder out, int type, String fileName, UpdateInfo ui) {
+        Encoder payload = new Encoder(0);
+        if (ui != null) {
+            writeEntry(payload, ui);
+        } else {
+            payload.writeString(fileName);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload.mData, 0, payload.mLength);
+
+        out.ensureCapacity(MAX_RECORD_HEADER_SIZE + payload.mLength);
+        out.mData[out.mLength++] = (byte) type;
+        out.writeVarint(payload.mLength);
+        ByteBuffer.wrap(out.mData).putInt(out.mLength, (int) crc.getValue());
+        out.mLength += 4;
+        System.arraycopy(payload.mData, 0, out.mData, out.mLength, payload.mLength);
+        out.mLength += payload.mLength;
+    }
+
+    static ByteBuffer encode(List<UpdateInfo> updates) {
+        int count = updates.size();
+        int indexStart = HEADER_SIZE + CatalogIndex.INDEX_START;
+        Encoder out = new Encoder(indexStart + count * CatalogIndex.ENTRY_SIZE);
+        int[] offsets = new int[count];
+        int i = 0;
+        for (UpdateInfo ui : updates) {
+            offsets[i++] = out.mLength - HEADER_SIZE;
+            writeEntry(out, ui);
+        }
+
+        ByteBuffer index = ByteBuffer.wrap(out.mData);
+        index.putInt(HEADER_SIZE, count);
+        i = 0;
+        for (UpdateInfo ui : updates) {
+            int position = HEADER_SIZE + CatalogIndex.position(i);
+            index.putInt(position + CatalogIndex.OFFSET, offsets[i]);
+            index.putLong(position + CatalogIndex.DATE, ui.getDate());
+            index.putInt(position + CatalogIndex.API_LEVEL, ui.getApiLevel());
+            index.put(position + CatalogIndex.TYPE, (byte) ui.getType().ordinal());
+            index.putInt(position + CatalogIndex.FILE_NAME_HASH,
+                    CatalogIndex.hash(ui.getFileName()));
+            i++;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(out.mData, HEADER_SIZE, out.mLength - HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(out.mData, 0, out.mLength);
+        buffer.putInt(0, MAGIC);
+        buffer.put(4, (byte) VERSION);
+        buffer.putInt(5, out.mLength - HEADER_SIZE);
+        buffer.putInt(9, (int) crc.getValue());
+        return buffer;
+    }
+
+    /**
+     * @return the update as a snapshot stores it. Entries are self-delimiting,
+     *         so one that starts with these bytes is the same update.
+     */
+    static byte[] encodeEntry(UpdateInfo ui) {
+        Encoder out = new Encoder(0);
+        writeEntry(out, ui);
+        return Arrays.copyOf(out.mData, out.mLength);
+    }
+
+    private static void writeEntry(Encoder out, UpdateInfo ui) {
+        out.writeString(ui.getName());
+        out.writeString(ui.getFileName());
+        out.writeString(ui.getType().name());
+        out.writeVarint(ui.getApiLevel());
+        out.writeVarint(ui.getDate());
+        out.writeString(ui.getDownloadUrl());
+        List<String> mirrors = ui.getMirrorUrls();
+        out.writeVarint(mirrors.size());
+        for (String mirror : mirrors) {
+            out.writeString(mirror);
+        }
+        out.writeString(ui.getChangelogUrl());
+        out.writeString(ui.getMD5Sum());
+        out.writeString(ui.getSHA256Sum());
+        out.writeString(ui.getCRC32());
+        ChunkManifest manifest = ui.getChunkManifest();
+        out.writeString(manifest != null ? manifest.toJSONString() : null);
+        out.writeString(ui.getBlockMapUrl());
+        out.writeString(ui.getIncremental());
+    }
+
+    /**
+     * Checks the header and checksum of a snapshot
+     *
+     * @return the payload
+     */
+    private static ByteBuffer checkSnapshot(ByteBuffer in) throws IOException {
+        if (in.remaining() < HEADER_SIZE || in.getInt(0) != MAGIC) {
+            throw new IOException("Not a state file");
+        }
+        int version = in.get(4) & 0xff;
+        if (version != VERSION) {
+            throw new IOException("Unknown version " + version);
+        }
+        int length = in.getInt(5);
+        if (length != in.limit() - HEADER_SIZE) {
+            throw new IOException("Expected " + length + " bytes, got "
+                    + (in.limit() - HEADER_SIZE));
+        }
+
+        // Mapped buffers have no array, so it's checked a piece at a time
+        ByteBuffer payload = in.duplicate();
+        payload.position(HEADER_SIZE);
+        payload = payload.slice();
+        ByteBuffer data = payload.duplicate();
+        byte[] chunk = new byte[8192];
+        CRC32 crc = new CRC32();
+        while (data.hasRemaining()) {
+            int count = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, count);
+            crc.update(chunk, 0, count);
+        }
+        if ((int) crc.getValue() != in.getInt(9)) {
+            throw new IOException("Checksum mismatch");
+        }
+        return payload;
+    }
+
+    /**
+     * Reads a snapshot without the index, as written by older versions
+     */
+    private static LinkedList<UpdateInfo> decodeList(ByteBuffer in) throws IOException {
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC) {
+            throw new IOException("Not a state file");
+        }
+        int version = in.get() & 0xff;
+        if (version != VERSION_LIST) {
+            throw new IOException("Unknown version " + version);
+        }
+        int length = in.getInt();
+        int checksum = in.getInt();
+        if (length != in.remaining()) {
+            throw new IOException("Expected " + length + " bytes, got " + in.remaining());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(in.array(), in.arrayOffset() + in.position(), length);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch");
+        }
+
+        int count = (int) readVarint(in);
+        LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
+        for (int i = 0; i < count; i++) {
+            updates.add(readEntry(in));
+        }
+        return updates;
+    }
+
+    static UpdateInfo readEntry(ByteBuffer in) throws IOException {
+        UpdateInfo.Builder builder = new UpdateInfo.Builder();
+        String name = readString(in);
+        builder.setFileName(readString(in));
+        builder.setName(name);
+        builder.setType(UpdateInfo.Type.valueOf(readString(in)));
+        builder.setApiLevel((int) readVarint(in));
+        builder.setBuildDate(readVarint(in));
+        builder.setDownloadUrl(readString(in));
+        int mirrorCount = (int) readVarint(in);
+        ArrayList<String> mirrors = new ArrayList<String>(mirrorCount);
+        for (int j = 0; j < mirrorCount; j++) {
+            mirrors.add(readString(in));
+        }
+        builder.setMirrorUrls(mirrors);
+        builder.setChangelogUrl(readString(in));
+        builder.setMD5Sum(readString(in));
+        builder.setSHA256Sum(readString(in));
+        builder.setCRC32(readString(in));
+        builder.setChunkManifest(ChunkManifest.fromJSONString(readString(in)));
+        builder.setBlockMapUrl(readString(in));
+        builder.setIncremental(readString(in));
+        return builder.build();
+    }
+
+    /**
+     * @return the updates stored with Java serialization, or null if it's not
+     *         such a file
+     */
+    @SuppressWarnings("unchecked")
+    private static LinkedList<UpdateInfo> loadLegacyState(File f) {
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)));
             Object o = ois.readObject();
-            if (o != null && o instanceof LinkedList<?>) {
-                availableUpdates = (LinkedList<UpdateInfo>) o;
+            if (o instanceof LinkedList<?>) {
+                return (LinkedList<UpdateInfo>) o;
             }
         } catch (ClassNotFoundException e) {
             Log.e(TAG, "Unable to load stored class", e);
-        } catch (IllegalArgumentException e) {
-            Log.d(TAG, "Unexpected state file format", e);
-        } catch (FileNotFoundException e) {
-            Log.i(TAG, "No state info stored");
         } catch (IOException e) {
-            Log.e(TAG, "Exception on loading state", e);
+            Log.d(TAG, "Not a serialized state file: " + e.getMessage());
+        } catch (ClassCastException e) {
+            Log.d(TAG, "Unexpected serialized state", e);
         } finally {
-            try {
-                if (ois != null) {
+            if (ois != null) {
+                try {
                     ois.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
                 }
-                if (fis != null) {
-                    fis.close();
-                }
-            } catch (IOException e) {
-                // ignored, can't do anything anyway
             }
         }
-        return availableUpdates;
+        return null;
+    }
+
+    static long readVarint(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get() & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static String readString(ByteBuffer in) throws IOException {
+        int length = readStringLength(in);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    static void skipString(ByteBuffer in) throws IOException {
+        int length = readStringLength(in);
+        if (length > 0) {
+            in.position(in.position() + length);
+        }
+    }
+
+    private static int readStringLength(ByteBuffer in) throws IOException {
+        long length = readVarint(in) - 1;
+        if (length > in.remaining()) {
+            throw new IOException("String of " + length + " bytes exceeds the file");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Growing buffer for encoded data, optionally with room for a header up front
+     */
+    private static class Encoder {
+        byte[] mData = new byte[4096];
+        int mLength;
+
+        Encoder(int reserved) {
+            ensureCapacity(reserved);
+            mLength = reserved;
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                mData[mLength++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mData[mLength++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarint(bytes.length + 1);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mData, mLength, bytes.length);
+            mLength += bytes.length;
+        }
+
+        void ensureCapacity(int extra) {
+            if (mLength + extra > mData.length) {
+                byte[] data = new byte[Math.max(mData.length * 2, mLength + extra)];
+                System.arraycopy(mData, 0, data, 0, mLength);
+                mData = data;
+            }
+        }
     }
 }
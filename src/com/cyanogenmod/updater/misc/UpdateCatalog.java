@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.misc;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The update list of the last check, kept for the whole process. The stored
+ * list is mapped from {@link State} the first time it is needed, and updates
+ * are only decoded from it when they are asked for. Changes are written back
+ * on a background thread. When several changes come in before the write
+ * starts, only the last one is written. Once it is on disk, the list is
+ * mapped again, so the decoded updates aren't kept around.
+ */
+public class UpdateCatalog {
+    private static final String TAG = "UpdateCatalog";
+
+    public interface Listener {
+        /**
+         * Called on the main thread after the update list changed
+         */
+        void onCatalogChanged(List<UpdateInfo> updates);
+    }
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+    private CatalogIndex mIndex;
+    // Counts the changes, so a write knows whether its list is still current
+    private int mGeneration;
+    private boolean mStored;
+    // Whether the last write failed, so the file may not match the list
+    private boolean mWriteFailed;
+    // What still has to be written, null if the file is up to date
+    private List<UpdateInfo> mPendingWrite;
+    private final ArrayList<Runnable> mPendingCallbacks = new ArrayList<Runnable>();
+
+    public UpdateCatalog(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * @return a copy of the update list, empty if there is none. This decodes
+     *         every update, callers that need less should use the other
+     *         accessors.
+     */
+    public synchronized LinkedList<UpdateInfo> getUpdates() {
+        ensureLoaded();
+        return mIndex.getAll();
+    }
+
+    /**
+     * @return the updates newer than the installed build, the others aren't
+     *         decoded
+     */
+    public synchronized LinkedList<UpdateInfo> getNewerThanInstalled() {
+        ensureLoaded();
+        return mIndex.getNewerThanInstalled();
+    }
+
+    /**
+     * @return the newest update that is newer than the installed build, or
+     *         null if there is none
+     */
+    public synchronized UpdateInfo getNewestNewerThanInstalled() {
+        ensureLoaded();
+        return mIndex.getNewestNewerThanInstalled();
+    }
+
+    /**
+     * @return whether the list holds an update equal to the given one
+     */
+    public synchronized boolean contains(UpdateInfo ui) {
+        ensureLoaded();
+        return mIndex.contains(ui);
+    }
+
+    public synchronized int size() {
+        ensureLoaded();
+        return mIndex.size();
+    }
+
+    public synchronized int countNewerThanInstalled() {
+        ensureLoaded();
+        return mIndex.countNewerThanInstalled();
+    }
+
+    /**
+     * @return whether there is an update list from an earlier check, even if
+     *         it's empty
+     */
+    public synchronized boolean hasUpdates() {
+        ensureLoaded();
+        return mStored;
+    }
+
+    /**
+     * Replaces the update list after a check. It is stored in the background.
+     *
+     * @param onStored run on the writer thread once the list is on disk, or
+     *        null. It is dropped if the list couldn't be written.
+     */
+    public void setUpdates(List<UpdateInfo> updates, Runnable onStored) {
+        final LinkedList<UpdateInfo> copy = new LinkedList<UpdateInfo>(updates);
+        boolean changed;
+        synchronized (this) {
+            ensureLoaded();
+            changed = !mStored || !mIndex.sameEntries(copy);
+            if (changed || mWriteFailed || mPendingWrite != null) {
+                // Until it's written, the list is held as objects
+                mIndex = CatalogIndex.of(copy);
+                mGeneration++;
+            }
+            mStored = true;
+            if (onStored != null) {
+                mPendingCallbacks.add(onStored);
+            }
+            if (changed || mWriteFailed || mPendingWrite != null) {
+                boolean scheduled = mPendingWrite != null;
+                mPendingWrite = copy;
+                if (!scheduled) {
+                    mWriter.execute(mWriteTask);
+                }
+            } else if (onStored != null) {
+                // Nothing to write, but the callbacks should still run in order
+                mWriter.execute(mWriteTask);
+            }
+        }
+
+        if (changed) {
+            final List<Listener> listeners;
+            synchronized (mListeners) {
+                listeners = new ArrayList<Listener>(mListeners);
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Listener listener : listeners) {
+                        listener.onCatalogChanged(new LinkedList<UpdateInfo>(copy));
+                    }
+                }
+            });
+        }
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mIndex == null) {
+            mStored = State.hasState(mContext);
+            mIndex = State.loadIndex(mContext);
+            Log.d(TAG, "Mapped " + mIndex.size() + " updates");
+        }
+    }
+
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            List<UpdateInfo> updates;
+            List<Runnable> callbacks;
+            int generation;
+            synchronized (UpdateCatalog.this) {
+                generation = mGeneration;
+                updates = mPendingWrite;
+                mPendingWrite = null;
+                callbacks = new ArrayList<Runnable>(mPendingCallbacks);
+                mPendingCallbacks.clear();
+            }
+            if (updates != null) {
+                boolean stored = State.updateState(mContext, updates);
+                synchronized (UpdateCatalog.this) {
+                    mWriteFailed = !stored;
+                }
+                if (!stored) {
+                    Log.e(TAG, "Unable to store " + updates.size() + " updates");
+                    return;
+                }
+
+                // Unless it changed again meanwhile, map what was just written
+                CatalogIndex index = State.loadIndex(mContext);
+                synchronized (UpdateCatalog.this) {
+                    if (mGeneration == generation && index.size() == updates.size()) {
+                        mIndex = index;
+                    }
+                }
+            }
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+    };
+}
@@ -14,10 +14,14 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
 
+import com.cyanogenmod.updater.utils.MultiDigest;
 import com.cyanogenmod.updater.utils.Utils;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,8 +46,13 @@ public class UpdateInfo implements Parcelable, Serializable {
     private int mApiLevel;
     private long mBuildDate;
     private String mDownloadUrl;
+    private ArrayList<String> mMirrorUrls;
     private String mChangelogUrl;
     private String mMd5Sum;
+    private String mSha256Sum;
+    private String mCrc32;
+    private ChunkManifest mChunkManifest;
+    private String mBlockMapUrl;
     private String mIncremental;
 
     private Boolean mIsNewerThanInstalled;
@@ -102,6 +111,52 @@ public class UpdateInfo implements Parcelable, Serializable {
         return mMd5Sum;
     }
 
+    /**
+     * Get SHA-256, null if the server did not provide one
+     */
+    public String getSHA256Sum() {
+        return mSha256Sum;
+    }
+
+    /**
+     * Get CRC32, null if the server did not provide one
+     */
+    public String getCRC32() {
+        return mCrc32;
+    }
+
+    /**
+     * Get per-chunk digests, null if the server did not provide them
+     */
+    public ChunkManifest getChunkManifest() {
+        return mChunkManifest;
+    }
+
+    /**
+     * Get the url of the block checksums of the zip, null if the server did
+     * not publish them
+     */
+    public String getBlockMapUrl() {
+        return mBlockMapUrl;
+    }
+
+    /**
+     * Get all digests the server provided, keyed by MultiDigest algorithm
+     */
+    public HashMap<String, String> getDigests() {
+        HashMap<String, String> digests = new HashMap<String, String>();
+        if (!TextUtils.isEmpty(mMd5Sum)) {
+            digests.put(MultiDigest.ALGORITHM_MD5, mMd5Sum);
+        }
+        if (!TextUtils.isEmpty(mSha256Sum)) {
+            digests.put(MultiDigest.ALGORITHM_SHA256, mSha256Sum);
+        }
+        if (!TextUtils.isEmpty(mCrc32)) {
+            digests.put(MultiDigest.ALGORITHM_CRC32, mCrc32);
+        }
+        return digests;
+    }
+
     /**
      * Get build date
      */
@@ -116,6 +171,13 @@ public class UpdateInfo implements Parcelable, Serializable {
         return mDownloadUrl;
     }
 
+    /**
+     * Get alternative download locations, empty if there are none
+     */
+    public List<String> getMirrorUrls() {
+        return mMirrorUrls != null ? mMirrorUrls : new ArrayList<String>();
+    }
+
     /**
      * Get changelog location
      */
@@ -147,15 +209,17 @@ public class UpdateInfo implements Parcelable, Serializable {
             return mIsNewerThanInstalled;
         }
 
+        mIsNewerThanInstalled = isNewerThanInstalled(mApiLevel, mBuildDate);
+        return mIsNewerThanInstalled;
+    }
+
+    public static boolean isNewerThanInstalled(int apiLevel, long buildDate) {
         int installedApiLevel = Utils.getInstalledApiLevel();
-        if (installedApiLevel != mApiLevel && mApiLevel > 0) {
-            mIsNewerThanInstalled = mApiLevel > installedApiLevel;
-        } else {
-            // API levels match, so compare build dates.
-            mIsNewerThanInstalled = mBuildDate > Utils.getInstalledBuildDate();
+        if (installedApiLevel != apiLevel && apiLevel > 0) {
+            return apiLevel > installedApiLevel;
         }
-
-        return mIsNewerThanInstalled;
+        // API levels match, so compare build dates.
+        return buildDate > Utils.getInstalledBuildDate();
     }
 
     public static String extractUiName(String fileName) {
@@ -185,6 +249,8 @@ public class UpdateInfo implements Parcelable, Serializable {
                 && mBuildDate == ui.mBuildDate
                 && TextUtils.equals(mDownloadUrl, ui.mDownloadUrl)
                 && TextUtils.equals(mMd5Sum, ui.mMd5Sum)
+                && TextUtils.equals(mSha256Sum, ui.mSha256Sum)
+                && TextUtils.equals(mCrc32, ui.mCrc32)
                 && TextUtils.equals(mIncremental, ui.mIncremental);
     }
 
@@ -211,7 +277,12 @@ public class UpdateInfo implements Parcelable, Serializable {
         out.writeInt(mApiLevel);
         out.writeLong(mBuildDate);
         out.writeString(mDownloadUrl);
+        out.writeStringList(mMirrorUrls);
         out.writeString(mMd5Sum);
+        out.writeString(mSha256Sum);
+        out.writeString(mCrc32);
+        out.writeString(mChunkManifest != null ? mChunkManifest.toJSONString() : null);
+        out.writeString(mBlockMapUrl);
         out.writeString(mIncremental);
     }
 
@@ -222,7 +293,12 @@ public class UpdateInfo implements Parcelable, Serializable {
         mApiLevel = in.readInt();
         mBuildDate = in.readLong();
         mDownloadUrl = in.readString();
+        mMirrorUrls = in.createStringArrayList();
         mMd5Sum = in.readString();
+        mSha256Sum = in.readString();
+        mCrc32 = in.readString();
+        mChunkManifest = ChunkManifest.fromJSONString(in.readString());
+        mBlockMapUrl = in.readString();
         mIncremental = in.readString();
     }
 
@@ -233,11 +309,15 @@ public class UpdateInfo implements Parcelable, Serializable {
         private int mApiLevel;
         private long mBuildDate;
         private String mDownloadUrl;
+        private ArrayList<String> mMirrorUrls;
         private String mChangelogUrl;
         private String mMd5Sum;
+        private String mSha256Sum;
+        private String mCrc32;
+        private ChunkManifest mChunkManifest;
+        private String mBlockMapUrl;
         private String mIncremental;
 
-
         public Builder setName(String uiName) {
             mUiName = uiName;
             return this;
@@ -285,6 +365,12 @@ public class UpdateInfo implements Parcelable, Serializable {
             return this;
         }
 
+        public Builder setMirrorUrls(List<String> mirrorUrls) {
+            mMirrorUrls = mirrorUrls != null && !mirrorUrls.isEmpty()
+                    ? new ArrayList<String>(mirrorUrls) : null;
+            return this;
+        }
+
         public Builder setChangelogUrl(String changelogUrl) {
             mChangelogUrl = changelogUrl;
             return this;
@@ -295,6 +381,26 @@ public class UpdateInfo implements Parcelable, Serializable {
             return this;
         }
 
+        public Builder setSHA256Sum(String sha256Sum) {
+            mSha256Sum = sha256Sum;
+            return this;
+        }
+
+        public Builder setCRC32(String crc32) {
+            mCrc32 = crc32;
+            return this;
+        }
+
+        public Builder setChunkManifest(ChunkManifest chunkManifest) {
+            mChunkManifest = chunkManifest;
+            return this;
+        }
+
+        public Builder setBlockMapUrl(String blockMapUrl) {
+            mBlockMapUrl = blockMapUrl;
+            return this;
+        }
+
         public Builder setIncremental(String incremental) {
             mIncremental = incremental;
             return this;
@@ -308,8 +414,13 @@ public class UpdateInfo implements Parcelable, Serializable {
             info.mApiLevel = mApiLevel;
             info.mBuildDate = mBuildDate;
             info.mDownloadUrl = mDownloadUrl;
+            info.mMirrorUrls = mMirrorUrls;
             info.mChangelogUrl = mChangelogUrl;
             info.mMd5Sum = mMd5Sum;
+            info.mSha256Sum = mSha256Sum;
+            info.mCrc32 = mCrc32;
+            info.mChunkManifest = mChunkManifest;
+            info.mBlockMapUrl = mBlockMapUrl;
             info.mIncremental = mIncremental;
             return info;
         }
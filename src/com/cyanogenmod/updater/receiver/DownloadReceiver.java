@@ -14,12 +14,11 @@ import android.app.StatusBarManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
 import com.cyanogenmod.updater.R;
+import com.cyanogenmod.updater.download.DownloadQueue;
 import com.cyanogenmod.updater.misc.Constants;
 import com.cyanogenmod.updater.misc.UpdateInfo;
 import com.cyanogenmod.updater.service.DownloadCompleteIntentService;
@@ -35,6 +34,11 @@ public class DownloadReceiver extends BroadcastReceiver{
     public static final String EXTRA_UPDATE_INFO = "update_info";
 
     public static final String ACTION_DOWNLOAD_STARTED = "com.cyanogenmod.cmupdater.action.DOWNLOAD_STARTED";
+    // Sent by DownloadService when an update doesn't fit on the storage
+    public static final String ACTION_DOWNLOAD_REJECTED = "com.cyanogenmod.cmupdater.action.DOWNLOAD_REJECTED";
+    public static final String EXTRA_UPDATE_KEY = "update_key";
+    // Sent (explicitly) by DownloadService when a built-in download ends
+    public static final String ACTION_DOWNLOAD_FINISHED = "com.cyanogenmod.cmupdater.action.DOWNLOAD_FINISHED";
 
     static final String ACTION_INSTALL_UPDATE = "com.cyanogenmod.cmupdater.action.INSTALL_UPDATE";
     static final String EXTRA_FILENAME = "filename";
@@ -46,7 +50,8 @@ public class DownloadReceiver extends BroadcastReceiver{
         if (ACTION_START_DOWNLOAD.equals(action)) {
             UpdateInfo ui = (UpdateInfo) intent.getParcelableExtra(EXTRA_UPDATE_INFO);
             handleStartDownload(context, ui);
-        } else if (DownloadManager.ACTION_DOWNLOAD_COMPLETE.equals(action)) {
+        } else if (DownloadManager.ACTION_DOWNLOAD_COMPLETE.equals(action)
+                || ACTION_DOWNLOAD_FINISHED.equals(action)) {
             long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
             handleDownloadComplete(context, id);
         } else if (ACTION_INSTALL_UPDATE.equals(action)) {
@@ -69,27 +74,19 @@ public class DownloadReceiver extends BroadcastReceiver{
     }
 
     private void handleDownloadComplete(Context context, long id) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        long enqueued = prefs.getLong(Constants.DOWNLOAD_ID, -1);
-        if (enqueued < 0 || id < 0 || id != enqueued) {
+        DownloadQueue.Entry entry = DownloadQueue.findById(id);
+        if (entry == null || entry.state != DownloadQueue.STATE_RUNNING) {
+            // Not one of ours, or already being verified
             return;
         }
-
-        String downloadedMD5 = prefs.getString(Constants.DOWNLOAD_MD5, "");
-        String incrementalFor = prefs.getString(Constants.DOWNLOAD_INCREMENTAL_FOR, null);
+        DownloadQueue.setVerifying(id);
 
         // Send off to DownloadCompleteIntentService
         Intent intent = new Intent(context, DownloadCompleteIntentService.class);
         intent.putExtra(Constants.DOWNLOAD_ID, id);
-        intent.putExtra(Constants.DOWNLOAD_MD5, downloadedMD5);
-        intent.putExtra(Constants.DOWNLOAD_INCREMENTAL_FOR, incrementalFor);
         context.startService(intent);
 
-        // Clear the shared prefs
-        prefs.edit()
-                .remove(Constants.DOWNLOAD_MD5)
-                .remove(Constants.DOWNLOAD_ID)
-                .remove(Constants.DOWNLOAD_INCREMENTAL_FOR)
-                .apply();
+        // The slot is free for the next queued download
+        DownloadService.schedule(context);
     }
 }
@@ -10,19 +10,32 @@
 package com.cyanogenmod.updater.requests;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
 import com.android.volley.Response;
-import com.android.volley.toolbox.StringRequest;
+import com.android.volley.toolbox.HttpHeaderParser;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.HashMap;
 import java.util.Map;
 
-public class ChangeLogRequest extends StringRequest {
+/**
+ * Delivers the change log as a Reader that decompresses the body while it is
+ * read, so the text can be written out without holding all of it in memory.
+ * The receiver has to close it.
+ */
+public class ChangeLogRequest extends Request<Reader> {
     private String mUserAgent;
+    private final Response.Listener<Reader> mListener;
 
     public ChangeLogRequest(int method, String url, String userAgent,
-           Response.Listener<String> listener, Response.ErrorListener errorListener) {
-        super(method, url, listener, errorListener);
+           Response.Listener<Reader> listener, Response.ErrorListener errorListener) {
+        super(method, url, errorListener);
         mUserAgent = userAgent;
+        mListener = listener;
     }
 
     @Override
@@ -32,6 +45,23 @@ public class ChangeLogRequest extends StringRequest {
             headers.put("User-Agent", mUserAgent);
         }
         headers.put("Cache-Control", "no-cache");
+        headers.put("Accept-Encoding", CompressedBody.ACCEPT_ENCODING);
         return headers;
     }
+
+    @Override
+    protected Response<Reader> parseNetworkResponse(NetworkResponse response) {
+        try {
+            Reader reader = new InputStreamReader(CompressedBody.open(response),
+                    HttpHeaderParser.parseCharset(response.headers));
+            return Response.success(reader, HttpHeaderParser.parseCacheHeaders(response));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+
+    @Override
+    protected void deliverResponse(Reader response) {
+        mListener.onResponse(response);
+    }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.requests;
+
+import android.util.Log;
+
+import com.android.volley.NetworkResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes the body of a compressed response while it is consumed. Requests
+ * that ask for compression with {@link #ACCEPT_ENCODING} get the body as the
+ * server sent it, so the decompressed text never exists as a whole: it goes
+ * from the compressed bytes straight into whatever reads the stream.
+ */
+public class CompressedBody {
+    private static final String TAG = "CompressedBody";
+
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    // Bytes the compression saved since the process started
+    private static final AtomicLong sBytesSaved = new AtomicLong();
+
+    private CompressedBody() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * @return the decoded body of the response, to be closed by the caller
+     */
+    public static InputStream open(NetworkResponse response) throws IOException {
+        InputStream in = new ByteArrayInputStream(response.data);
+        String encoding = getHeader(response, "Content-Encoding");
+        if (encoding == null || "identity".equalsIgnoreCase(encoding.trim())) {
+            return in;
+        }
+
+        if ("gzip".equalsIgnoreCase(encoding.trim())) {
+            in = new GZIPInputStream(in);
+        } else if ("deflate".equalsIgnoreCase(encoding.trim())) {
+            // Should be zlib wrapped, but some servers send raw deflate
+            in = new InflaterInputStream(in, new Inflater(!isZlibWrapped(response.data)));
+        } else {
+            throw new IOException("Unsupported content encoding " + encoding);
+        }
+        return new CountingInputStream(in, response.data.length);
+    }
+
+    /**
+     * @return how many bytes compression saved on the wire since the app started
+     */
+    public static long getBytesSaved() {
+        return sBytesSaved.get();
+    }
+
+    static String getHeader(NetworkResponse response, String name) {
+        if (response.headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isZlibWrapped(byte[] data) {
+        if (data.length < 2) {
+            return false;
+        }
+        int cmf = data[0] & 0xff;
+        int flg = data[1] & 0xff;
+        return (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    /**
+     * Counts the decoded bytes, to tell what the compression saved once the
+     * body was read.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final long mCompressedBytes;
+        private long mDecodedBytes;
+        private boolean mRecorded;
+
+        CountingInputStream(InputStream in, long compressedBytes) {
+            super(in);
+            mCompressedBytes = compressedBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                mDecodedBytes++;
+            } else {
+                record();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mDecodedBytes += read;
+            } else if (read < 0) {
+                record();
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mDecodedBytes += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void record() {
+            if (mRecorded) {
+                return;
+            }
+            mRecorded = true;
+            long saved = mDecodedBytes - mCompressedBytes;
+            long total = sBytesSaved.addAndGet(saved);
+            Log.d(TAG, "Decoded " + mDecodedBytes + " bytes from " + mCompressedBytes
+                    + ", saved " + saved + " (" + total + " in total)");
+        }
+    }
+}
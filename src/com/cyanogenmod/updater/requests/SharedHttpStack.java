@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.requests;
+
+import android.content.Context;
+
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.HurlStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The one HTTP stack of the app. API requests through Volley and the
+ * connections of built-in downloads are all opened here, so they share the
+ * platform connection pool: a connection to the update server or a mirror
+ * that was used for one request is kept alive and reused by the next one,
+ * without another TCP and TLS handshake.
+ *
+ * A connection only goes back to the pool if its response was read to the
+ * end and the stream closed with {@link #release}. Connections abandoned
+ * halfway have to be disconnected instead.
+ */
+public class SharedHttpStack {
+    public static final int CONNECT_TIMEOUT = 15000; // 15 seconds
+    public static final int READ_TIMEOUT = 30000; // 30 seconds
+
+    // Enough idle connections for every connection of a download plus API calls
+    private static final int MAX_IDLE_CONNECTIONS = 20;
+    private static final long KEEP_ALIVE_DURATION = 5 * 60 * 1000; // 5 minutes
+    // API requests are few and mostly one after the other
+    private static final int NETWORK_THREADS = 2;
+    private static final String CACHE_DIR = "volley";
+
+    private SharedHttpStack() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * Configures the connection pool, has to happen before the first connection
+     */
+    public static void init() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+        System.setProperty("http.keepAliveDuration", String.valueOf(KEEP_ALIVE_DURATION));
+    }
+
+    /**
+     * Like Volley.newRequestQueue, but with fewer threads. Volley takes its
+     * timeouts from the retry policy of each request.
+     */
+    public static RequestQueue newRequestQueue(Context context) {
+        File cacheDir = new File(context.getCacheDir(), CACHE_DIR);
+        RequestQueue queue = new RequestQueue(new DiskBasedCache(cacheDir),
+                new BasicNetwork(new HurlStack()), NETWORK_THREADS);
+        queue.start();
+        return queue;
+    }
+
+    /**
+     * @return a connection to the url, not connected yet
+     */
+    public static HttpURLConnection open(String url, String userAgent) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        if (userAgent != null) {
+            conn.setRequestProperty("User-Agent", userAgent);
+        }
+        return conn;
+    }
+
+    /**
+     * Closes the stream of a response that was read completely, which hands
+     * the connection back to the pool
+     */
+    public static void release(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore, not much we can do anyway
+            }
+        }
+    }
+
+}
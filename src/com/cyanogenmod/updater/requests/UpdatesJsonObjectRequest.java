@@ -9,22 +9,45 @@
 
 package com.cyanogenmod.updater.requests;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
 import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
 import com.android.volley.toolbox.JsonObjectRequest;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.util.HashMap;
 import java.util.Map;
 
 public class UpdatesJsonObjectRequest extends JsonObjectRequest {
+    private static final String DEFAULT_CHARSET = "utf-8";
+
     private String mUserAgent;
+    private String mRequestJson;
     private HashMap<String, String> mHeaders = new HashMap<String, String>();
+    private String mETag;
+    private String mLastModified;
 
+    /**
+     * The listener gets null instead of an object if the server answered that
+     * nothing changed since the validators passed to {@link #setValidators}.
+     */
     public UpdatesJsonObjectRequest(String url, String userAgent, JSONObject jsonRequest,
             Response.Listener<JSONObject> listener, Response.ErrorListener errorListener) {
         super(url, jsonRequest, listener, errorListener);
         mUserAgent = userAgent;
+        mRequestJson = jsonRequest != null ? jsonRequest.toString() : null;
+        // Volley's cache would answer a 304 with its own copy, we keep our own
+        setShouldCache(false);
     }
 
     @Override
@@ -33,10 +56,135 @@ public class UpdatesJsonObjectRequest extends JsonObjectRequest {
             mHeaders.put("User-Agent", mUserAgent);
         }
         mHeaders.put("Cache-Control", "no-cache");
+        mHeaders.put("Accept-Encoding", CompressedBody.ACCEPT_ENCODING);
         return mHeaders;
     }
 
     public void addHeader(String key, String what) {
         mHeaders.put(key, what);
     }
+
+    /**
+     * Makes the request conditional on the response these validators came with
+     */
+    public void setValidators(String eTag, String lastModified) {
+        if (eTag != null) {
+            mHeaders.put("If-None-Match", eTag);
+        }
+        if (lastModified != null) {
+            mHeaders.put("If-Modified-Since", lastModified);
+        }
+    }
+
+    public String getRequestJson() {
+        return mRequestJson;
+    }
+
+    /**
+     * @return the ETag of the response, or null
+     */
+    public String getETag() {
+        return mETag;
+    }
+
+    /**
+     * @return the Last-Modified date of the response, or null
+     */
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    @Override
+    protected Response<JSONObject> parseNetworkResponse(NetworkResponse response) {
+        if (response.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return Response.success(null, null);
+        }
+        mETag = CompressedBody.getHeader(response, "ETag");
+        mLastModified = CompressedBody.getHeader(response, "Last-Modified");
+
+        // The body is decompressed as the parser goes, there is never a
+        // String of the whole list
+        JsonReader reader = null;
+        try {
+            reader = new JsonReader(new InputStreamReader(CompressedBody.open(response),
+                    HttpHeaderParser.parseCharset(response.headers, DEFAULT_CHARSET)));
+            return Response.success(readObject(reader),
+                    HttpHeaderParser.parseCacheHeaders(response));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        } catch (JSONException e) {
+            return Response.error(new ParseError(e));
+        } catch (IllegalStateException e) {
+            // JsonReader throws this for a token of the wrong type
+            return Response.error(new ParseError(e));
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore, not much we can do anyway
+                }
+            }
+        }
+    }
+
+    private static JSONObject readObject(JsonReader reader)
+            throws IOException, JSONException {
+        JSONObject object = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            object.put(reader.nextName(), readValue(reader));
+        }
+        reader.endObject();
+        return object;
+    }
+
+    private static JSONArray readArray(JsonReader reader) throws IOException, JSONException {
+        JSONArray array = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            array.put(readValue(reader));
+        }
+        reader.endArray();
+        return array;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            case STRING:
+                return reader.nextString();
+            default:
+                throw new JSONException("Unexpected " + token);
+        }
+    }
+
+    /**
+     * @return the number as the type org.json would have picked for it
+     */
+    private static Number parseNumber(String number) {
+        if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+            try {
+                long value = Long.parseLong(number);
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            } catch (NumberFormatException e) {
+                // too large for a long, fall through
+            }
+        }
+        return Double.valueOf(number);
+    }
 }
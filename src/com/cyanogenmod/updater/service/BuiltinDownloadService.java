@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.service;
+
+import android.app.DownloadManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.cyanogenmod.updater.R;
+import com.cyanogenmod.updater.UpdatesSettings;
+import com.cyanogenmod.updater.download.Downloads;
+import com.cyanogenmod.updater.download.StreamingDownload;
+import com.cyanogenmod.updater.receiver.DownloadReceiver;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs built-in downloads, each on its own thread, and keeps the process
+ * alive until all of them are done. While any is running, the service is in
+ * the foreground and holds a wake lock and a Wi-Fi lock, so neither the CPU
+ * nor the radio goes to sleep halfway through a transfer.
+ */
+public class BuiltinDownloadService extends Service {
+    private static final String TAG = "BuiltinDownloadService";
+
+    private static final String EXTRA_DOWNLOAD_ID = "download_id";
+
+    private final Handler mHandler = new Handler();
+    private ExecutorService mExecutor;
+    private PowerManager.WakeLock mWakeLock;
+    private WifiManager.WifiLock mWifiLock;
+    private int mRunning;
+    private int mLastStartId;
+
+    public static void start(Context context, long id) {
+        Intent intent = new Intent(context, BuiltinDownloadService.class);
+        intent.putExtra(EXTRA_DOWNLOAD_ID, id);
+        context.startService(intent);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mExecutor = Executors.newCachedThreadPool();
+
+        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+        WifiManager wm = (WifiManager) getApplicationContext()
+                .getSystemService(Context.WIFI_SERVICE);
+        mWifiLock = wm.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, TAG);
+        mWifiLock.setReferenceCounted(false);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mExecutor.shutdown();
+        releaseLocks();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+
+        long id = intent != null ? intent.getLongExtra(EXTRA_DOWNLOAD_ID, -1) : -1;
+        final StreamingDownload download = Downloads.getBuiltin(id);
+        if (download == null) {
+            Log.d(TAG, "Download " + id + " is gone, not starting it");
+            stopIfIdle();
+            return START_NOT_STICKY;
+        }
+
+        if (mRunning++ == 0) {
+            acquireLocks();
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runDownload(download);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRunning--;
+                        stopIfIdle();
+                    }
+                });
+            }
+        });
+
+        // Downloads interrupted by the process dying are queued again
+        // by DownloadQueue, so there's no need to be restarted
+        return START_NOT_STICKY;
+    }
+
+    private void stopIfIdle() {
+        if (mRunning == 0) {
+            releaseLocks();
+            stopSelf(mLastStartId);
+        }
+    }
+
+    private void acquireLocks() {
+        Intent intent = new Intent(this, UpdatesSettings.class);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent, 0);
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setWhen(System.currentTimeMillis())
+                .setContentTitle(getString(R.string.not_downloading_update))
+                .setContentIntent(contentIntent)
+                .setProgress(0, 0, true)
+                .setOngoing(true)
+                .setLocalOnly(true);
+        startForeground(R.string.not_downloading_update, builder.build());
+
+        mWakeLock.acquire();
+        mWifiLock.acquire();
+    }
+
+    private void releaseLocks() {
+        if (mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+        if (mWifiLock.isHeld()) {
+            mWifiLock.release();
+        }
+        stopForeground(true);
+    }
+
+    private void runDownload(StreamingDownload download) {
+        download.run();
+        if (download.isCancelled()) {
+            // Cancelled by the user, who already cleaned up
+            return;
+        }
+
+        // Hand off to the same completion path DownloadManager downloads take
+        Intent intent = new Intent(this, DownloadReceiver.class);
+        intent.setAction(DownloadReceiver.ACTION_DOWNLOAD_FINISHED);
+        intent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, download.getId());
+        sendBroadcast(intent);
+    }
+}
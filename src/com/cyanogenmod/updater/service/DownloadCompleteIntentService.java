@@ -11,56 +11,89 @@ package com.cyanogenmod.updater.service;
 
 import android.app.DownloadManager;
 import android.app.IntentService;
-import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
+import android.text.TextUtils;
+import android.util.Log;
 
 import com.cyanogenmod.updater.R;
 import com.cyanogenmod.updater.UpdateApplication;
 import com.cyanogenmod.updater.UpdatesSettings;
+import com.cyanogenmod.updater.download.DownloadQueue;
+import com.cyanogenmod.updater.download.Downloads;
+import com.cyanogenmod.updater.download.RangeRequest;
+import com.cyanogenmod.updater.misc.ChunkManifest;
 import com.cyanogenmod.updater.misc.Constants;
 import com.cyanogenmod.updater.receiver.DownloadNotifier;
-import com.cyanogenmod.updater.utils.MD5;
+import com.cyanogenmod.updater.utils.CheckpointedDigest;
+import com.cyanogenmod.updater.utils.ChunkVerifier;
+import com.cyanogenmod.updater.utils.DigestCache;
+import com.cyanogenmod.updater.utils.MultiDigest;
+import com.cyanogenmod.updater.utils.Utils;
+import com.cyanogenmod.updater.utils.ZipChecker;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class DownloadCompleteIntentService extends IntentService {
-    private DownloadManager mDm;
-
-    @Override
-    public void onCreate() {
-        super.onCreate();
-        mDm = (DownloadManager) getSystemService(Context.DOWNLOAD_SERVICE);
-    }
+    private static final String TAG = "DownloadCompleteIntentService";
 
     public DownloadCompleteIntentService() {
         super(DownloadCompleteIntentService.class.getSimpleName());
+        // Get the intent again if we're killed while verifying, so the
+        // verification can continue from its last checkpoint
+        setIntentRedelivery(true);
     }
 
     @Override
     protected void onHandleIntent(Intent intent) {
-        if (!intent.hasExtra(Constants.DOWNLOAD_ID) ||
-                !intent.hasExtra(Constants.DOWNLOAD_MD5)) {
+        long id = intent.getLongExtra(Constants.DOWNLOAD_ID, -1);
+        DownloadQueue.Entry entry = DownloadQueue.findById(id);
+        if (entry == null) {
+            // Cancelled, or a redelivered intent for a download we're done with
+            Downloads.release(id);
             return;
         }
 
-        long id = intent.getLongExtra(Constants.DOWNLOAD_ID, -1);
-        String downloadedMD5 = intent.getStringExtra(Constants.DOWNLOAD_MD5);
-        String incrementalFor = intent.getStringExtra(Constants.DOWNLOAD_INCREMENTAL_FOR);
+        try {
+            handleDownload(id, entry);
+        } finally {
+            DownloadQueue.remove(id);
+            Downloads.release(id);
+        }
+    }
+
+    private void handleDownload(long id, DownloadQueue.Entry entry) {
+        HashMap<String, String> expectedDigests = entry.getDigests();
+        ChunkManifest chunkManifest = ChunkManifest.fromJSONString(entry.chunks);
+        String incrementalFor = entry.incrementalFor;
 
         Intent updateIntent = new Intent(this, UpdatesSettings.class);
         updateIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
                 Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
 
-        int status = fetchDownloadStatus(id);
+        Downloads.Status downloadStatus = Downloads.query(this, id);
+        if (downloadStatus == null) {
+            // Built-in downloads are forgotten when the process dies, which
+            // may have happened while the finished download was being verified
+            downloadStatus = getInterruptedStatus(id);
+        }
+        int status = downloadStatus != null
+                ? downloadStatus.status : DownloadManager.STATUS_FAILED;
         if (status == DownloadManager.STATUS_SUCCESSFUL) {
             // Get the full path name of the downloaded file and the MD5
 
             // Strip off the .partial at the end to get the completed file
-            String partialFileFullPath = fetchDownloadPartialPath(id);
+            String partialFileFullPath = downloadStatus.localPath;
 
             if (partialFileFullPath == null) {
-                displayErrorResult(updateIntent, R.string.unable_to_download_file);
+                displayErrorResult(entry, updateIntent, R.string.unable_to_download_file);
+                return;
             }
 
             String completedFileFullPath = partialFileFullPath.replace(".partial", "");
@@ -69,64 +102,166 @@ public class DownloadCompleteIntentService extends IntentService {
             File updateFile = new File(completedFileFullPath);
             partialFile.renameTo(updateFile);
 
-            // Start the MD5 check of the downloaded file
-            if (MD5.checkMD5(downloadedMD5, updateFile)) {
-                // We passed. Bring the main app to the foreground and trigger download completed
+            // Check every digest we know for the downloaded file. If they were
+            // calculated while downloading, there is no need to read the file again,
+            // otherwise all of them are calculated in a single pass. If that fails and
+            // the build has a chunk manifest, only the corrupt ranges are fetched again.
+            if (verifyDigests(id, expectedDigests, downloadStatus.calculatedDigests, updateFile)
+                    || (repairCorruptChunks(chunkManifest, downloadStatus.uri, updateFile)
+                            && verifyDigests(id, expectedDigests, null, updateFile))) {
+                DownloadQueue.Entry nextHop = entry.takeNextHop();
+                if (nextHop != null) {
+                    // More incrementals to go before the update can be installed
+                    Log.d(TAG, "Queueing the next incremental for " + incrementalFor);
+                    DownloadQueue.add(nextHop);
+                    DownloadService.schedule(this);
+                    return;
+                }
+
+                // We passed. Bring the main app to the foreground and trigger download completed.
+                // Of a chain of incrementals, the first one has to be installed first.
+                File installFile = entry.firstHopPath != null
+                        ? new File(entry.firstHopPath) : updateFile;
                 updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_ID, id);
                 updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_PATH,
-                        completedFileFullPath);
+                        installFile.getAbsolutePath());
                 updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_INCREMENTAL_FOR,
                         incrementalFor);
-                displaySuccessResult(updateIntent, updateFile);
+                displaySuccessResult(entry, updateIntent, installFile);
             } else {
                 // We failed. Clear the file and reset everything
-                mDm.remove(id);
+                boolean reusedBlocks = entry.blockMapUrl != null && Downloads.isBuiltin(id);
+                Downloads.remove(this, id);
+                CheckpointedDigest.clear(this);
 
                 if (updateFile.exists()) {
                     updateFile.delete();
                 }
-                displayErrorResult(updateIntent, R.string.md5_verification_failed);
+                if (reusedBlocks) {
+                    // Blocks taken from local zips may not be what they claimed
+                    // to be, fetch the whole file instead
+                    Log.i(TAG, "Downloading " + entry.key + " again without block reuse");
+                    entry.blockMapUrl = null;
+                    DownloadQueue.add(entry);
+                    DownloadService.schedule(this);
+                    return;
+                }
+                displayErrorResult(entry, updateIntent, R.string.md5_verification_failed);
             }
         } else if (status == DownloadManager.STATUS_FAILED) {
-            // The download failed, reset
-            mDm.remove(id);
-            displayErrorResult(updateIntent, R.string.unable_to_download_file);
+            // The download failed, reset but keep what we got for the next attempt
+            Downloads.remove(this, id, true);
+            displayErrorResult(entry, updateIntent, R.string.unable_to_download_file);
         }
     }
 
-    private String fetchDownloadPartialPath(long id) {
-        DownloadManager.Query query = new DownloadManager.Query();
-        query.setFilterById(id);
-        Cursor c = mDm.query(query);
-        try {
-            if (c.moveToFirst()) {
-                return c.getString(c.getColumnIndex(DownloadManager.COLUMN_LOCAL_FILENAME));
+    private Downloads.Status getInterruptedStatus(long id) {
+        File updateFile = CheckpointedDigest.getInterruptedFile(this, id);
+        if (updateFile == null) {
+            return null;
+        }
+        Downloads.Status status = new Downloads.Status();
+        status.status = DownloadManager.STATUS_SUCCESSFUL;
+        status.localPath = updateFile.getAbsolutePath();
+        return status;
+    }
+
+    private boolean verifyDigests(long id, HashMap<String, String> expectedDigests,
+            HashMap<String, String> calculatedDigests, File updateFile) {
+        ArrayList<String> algorithms = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : expectedDigests.entrySet()) {
+            if (!TextUtils.isEmpty(entry.getValue())) {
+                algorithms.add(entry.getKey());
             }
-        } finally {
-            c.close();
         }
-        return null;
+        if (algorithms.isEmpty()) {
+            return false;
+        }
+
+        if (calculatedDigests != null && calculatedDigests.keySet().containsAll(algorithms)) {
+            // Remember the streamed digests, so later checks of the file are free
+            DigestCache.putAll(updateFile, calculatedDigests);
+        } else if (!ZipChecker.isValid(updateFile)) {
+            // Obviously broken, don't bother hashing it
+            return false;
+        } else {
+            // Checkpointed, so a large zip isn't hashed from the start again
+            // when we get killed halfway through
+            String[] names = algorithms.toArray(new String[algorithms.size()]);
+            calculatedDigests = CheckpointedDigest.isSupported(names)
+                    ? CheckpointedDigest.calculate(this, id, updateFile, names)
+                    : MultiDigest.calculate(updateFile, names);
+        }
+        return MultiDigest.matches(expectedDigests, calculatedDigests);
     }
 
-    private int fetchDownloadStatus(long id) {
-        DownloadManager.Query query = new DownloadManager.Query();
-        query.setFilterById(id);
-        Cursor c = mDm.query(query);
+    private boolean repairCorruptChunks(ChunkManifest manifest, String url, File updateFile) {
+        if (manifest == null || url == null) {
+            return false;
+        }
+
+        List<ChunkVerifier.Range> corrupt = ChunkVerifier.findCorruptRanges(updateFile, manifest);
+        if (corrupt == null || corrupt.isEmpty()) {
+            // Unreadable, or every chunk matches and there's nothing we can fix
+            return false;
+        }
+
+        long corruptBytes = 0;
+        for (ChunkVerifier.Range range : corrupt) {
+            corruptBytes += range.length();
+        }
+        Log.i(TAG, "Fetching " + corrupt.size() + " corrupt ranges (" + corruptBytes
+                + " bytes) of " + updateFile.getName() + " again: " + corrupt);
+
+        RandomAccessFile raf = null;
         try {
-            if (c.moveToFirst()) {
-                return c.getInt(c.getColumnIndex(DownloadManager.COLUMN_STATUS));
+            raf = new RandomAccessFile(updateFile, "rw");
+            FileChannel channel = raf.getChannel();
+            String userAgent = Utils.getUserAgentString(this);
+            for (ChunkVerifier.Range range : corrupt) {
+                long fetched = RangeRequest.fetch(url, userAgent, channel,
+                        range.start, range.end);
+                if (fetched < range.length()) {
+                    // The remote file ends inside this range, drop anything after it
+                    channel.truncate(range.start + fetched);
+                }
             }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to repair " + updateFile, e);
+            return false;
         } finally {
-            c.close();
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignore, not much we can do anyway
+                }
+            }
         }
-        return DownloadManager.STATUS_FAILED;
+
+        // The file changed behind the cache's back, possibly within its mtime granularity
+        DigestCache.invalidate(updateFile);
+
+        List<ChunkVerifier.Range> remaining = ChunkVerifier.findCorruptRanges(updateFile, manifest);
+        return remaining != null && remaining.isEmpty();
     }
 
-    private void displayErrorResult(Intent updateIntent, int failureMessageResId) {
+    private void displayErrorResult(DownloadQueue.Entry entry, Intent updateIntent,
+            int failureMessageResId) {
+        if (entry.priority == DownloadQueue.PRIORITY_BACKGROUND) {
+            // Nobody asked for a prefetch, so it fails quietly
+            PrefetchJobService.onPrefetchDone(this);
+            return;
+        }
         DownloadNotifier.notifyDownloadError(this, updateIntent, failureMessageResId);
     }
 
-    private void displaySuccessResult(Intent updateIntent, File updateFile) {
+    private void displaySuccessResult(DownloadQueue.Entry entry, Intent updateIntent,
+            File updateFile) {
+        if (entry.priority == DownloadQueue.PRIORITY_BACKGROUND) {
+            PrefetchJobService.onPrefetchDone(this);
+            return;
+        }
         final UpdateApplication app = (UpdateApplication) getApplicationContext();
         if (app.isMainActivityActive()) {
             startActivity(updateIntent);
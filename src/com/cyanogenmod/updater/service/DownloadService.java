@@ -13,76 +13,242 @@ import android.app.DownloadManager;
 import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Parcelable;
 import android.os.SystemProperties;
-import android.preference.PreferenceManager;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.android.volley.Response;
-import com.android.volley.VolleyError;
 import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.RequestFuture;
 
 import com.cyanogenmod.updater.R;
 import com.cyanogenmod.updater.UpdateApplication;
-import com.cyanogenmod.updater.misc.Constants;
+import com.cyanogenmod.updater.UpdatesSettings;
+import com.cyanogenmod.updater.download.DownloadQueue;
+import com.cyanogenmod.updater.download.Downloads;
+import com.cyanogenmod.updater.download.Preflight;
+import com.cyanogenmod.updater.download.SegmentController;
+import com.cyanogenmod.updater.download.StreamingDownload;
+import com.cyanogenmod.updater.misc.ChunkManifest;
+import com.cyanogenmod.updater.misc.UpdateCatalog;
 import com.cyanogenmod.updater.misc.UpdateInfo;
+import com.cyanogenmod.updater.receiver.DownloadNotifier;
 import com.cyanogenmod.updater.receiver.DownloadReceiver;
 import com.cyanogenmod.updater.requests.UpdatesJsonObjectRequest;
+import com.cyanogenmod.updater.utils.DigestCache;
+import com.cyanogenmod.updater.utils.IncrementalPlanner;
+import com.cyanogenmod.updater.utils.MultiDigest;
+import com.cyanogenmod.updater.utils.UpdateFilter;
 import com.cyanogenmod.updater.utils.Utils;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.IOException;
 import java.net.URI;
-
-public class DownloadService extends IntentService
-        implements Response.Listener<JSONObject>, Response.ErrorListener {
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+public class DownloadService extends IntentService {
     private static final String TAG = DownloadService.class.getSimpleName();
 
     private static final String EXTRA_UPDATE_INFO = "update_info";
+    private static final String EXTRA_PRIORITY = "priority";
+
+    // Limits the get_delta requests for finding a chain of incrementals
+    private static final int MAX_DELTA_LOOKUPS = 24;
+    // Local zips searched for blocks of a new build
+    private static final int MAX_SEED_FILES = 2;
 
-    private SharedPreferences mPrefs;
     private UpdateInfo mInfo = null;
 
     public static void start(Context context, UpdateInfo ui) {
+        start(context, ui, DownloadQueue.PRIORITY_USER);
+    }
+
+    public static void start(Context context, UpdateInfo ui, int priority) {
         Intent intent = new Intent(context, DownloadService.class);
         intent.putExtra(EXTRA_UPDATE_INFO, (Parcelable) ui);
+        intent.putExtra(EXTRA_PRIORITY, priority);
         context.startService(intent);
     }
 
+    /**
+     * Starts queued downloads if there are free slots
+     */
+    public static void schedule(Context context) {
+        context.startService(new Intent(context, DownloadService.class));
+    }
+
     public DownloadService() {
         super(TAG);
     }
 
     @Override
     protected void onHandleIntent(Intent intent) {
-        mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
         mInfo = intent.getParcelableExtra(EXTRA_UPDATE_INFO);
 
-        if (mInfo == null) {
-            Log.e(TAG, "Intent UpdateInfo extras were null");
-            return;
+        if (mInfo != null) {
+            int priority = intent.getIntExtra(EXTRA_PRIORITY, DownloadQueue.PRIORITY_USER);
+            if (DownloadQueue.findByKey(mInfo.getFileName()) != null) {
+                Log.d(TAG, mInfo.getFileName() + " is already queued");
+                // A prefetch the user asks for doesn't wait for the device to idle any more
+                DownloadQueue.raisePriority(mInfo.getFileName(), priority);
+            } else if (reuseLocalCopy()) {
+                Log.d(TAG, mInfo.getFileName() + " is already on the device");
+            } else {
+                List<IncrementalPlanner.Hop> hops = planIncrementals();
+                DownloadQueue.Entry entry = hops == null
+                        ? makeFullZipEntry(priority)
+                        : makeIncrementalEntry(hops, priority);
+                if (hasSpaceFor(entry)) {
+                    DownloadQueue.add(entry);
+                    Utils.cancelNotification(this);
+                } else {
+                    rejectDownload(entry);
+                }
+            }
         }
 
-        try {
-            getIncremental();
-        } catch (IOException e) {
-            downloadFullZip();
+        startQueuedDownloads();
+    }
+
+    /**
+     * Puts a local file with the content of the build in its place, so it
+     * doesn't have to be downloaded. Files are found by their cached MD5, so
+     * nothing is hashed, and they are hard linked or renamed, not copied.
+     *
+     * @return whether the build is in place and reported as downloaded
+     */
+    private boolean reuseLocalCopy() {
+        File directory = getUpdateDirectory();
+        File existing = DigestCache.find(MultiDigest.ALGORITHM_MD5, mInfo.getMD5Sum(),
+                directory.listFiles(new UpdateFilter(".zip")));
+        if (existing == null) {
+            return false;
+        }
+
+        File updateFile = new File(directory, mInfo.getFileName());
+        if (!existing.equals(updateFile)) {
+            if (updateFile.exists()) {
+                // Something else by that name, better download it again
+                return false;
+            }
+            try {
+                Os.link(existing.getAbsolutePath(), updateFile.getAbsolutePath());
+                DigestCache.link(existing, updateFile, true);
+            } catch (ErrnoException e) {
+                // No hard links on this file system, the other name has to go
+                if (!existing.renameTo(updateFile)) {
+                    Log.w(TAG, "Unable to move " + existing + " to " + updateFile);
+                    return false;
+                }
+                DigestCache.link(existing, updateFile, false);
+            }
+            Log.i(TAG, "Reusing " + existing + " as " + updateFile);
         }
+
+        Intent updateIntent = new Intent(this, UpdatesSettings.class);
+        updateIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
+                Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
+        updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_PATH,
+                updateFile.getAbsolutePath());
+        Utils.cancelNotification(this);
+        if (((UpdateApplication) getApplicationContext()).isMainActivityActive()) {
+            startActivity(updateIntent);
+        } else {
+            DownloadNotifier.notifyDownloadComplete(this, updateIntent, updateFile);
+        }
+        return true;
     }
 
-    private void getIncremental() throws IOException {
-        String sourceIncremental = Utils.getIncremental();
-        Log.d(TAG, "Looking for incremental ota for source=" + sourceIncremental + ", target="
-                + mInfo.getIncremental());
+    /**
+     * @return the incrementals that lead to the build the cheapest, in the
+     *         order they have to be applied, or null to get the full zip
+     */
+    private List<IncrementalPlanner.Hop> planIncrementals() {
+        final String userAgent = Utils.getUserAgentString(this);
+        long fullSize = mInfo.getDownloadUrl() != null
+                ? Preflight.getRemoteSize(mInfo.getDownloadUrl(), userAgent) : -1;
+
+        IncrementalPlanner planner = new IncrementalPlanner(new IncrementalPlanner.Lookup() {
+            @Override
+            public IncrementalPlanner.Hop find(String sourceIncremental,
+                    String targetIncremental) {
+                UpdateInfo info = getIncremental(sourceIncremental, targetIncremental);
+                if (info == null) {
+                    return null;
+                }
+                // get_delta doesn't tell the size, the server does
+                long size = Preflight.getRemoteSize(info.getDownloadUrl(), userAgent);
+                return new IncrementalPlanner.Hop(sourceIncremental, targetIncremental,
+                        info, size);
+            }
+        }, MAX_DELTA_LOOKUPS);
+        return planner.plan(Utils.getIncremental(), mInfo.getIncremental(),
+                getIntermediateBuilds(), fullSize);
+    }
+
+    /**
+     * @return incrementals of the known builds between the installed build
+     *         and the one to download, oldest first
+     */
+    private List<String> getIntermediateBuilds() {
+        ArrayList<UpdateInfo> builds = new ArrayList<UpdateInfo>();
+        UpdateCatalog catalog = ((UpdateApplication) getApplicationContext()).getCatalog();
+        for (UpdateInfo ui : catalog.getNewerThanInstalled()) {
+            if (!ui.isIncremental() && ui.getDate() < mInfo.getDate()
+                    && !TextUtils.isEmpty(ui.getIncremental())) {
+                builds.add(ui);
+            }
+        }
+        Collections.sort(builds, new Comparator<UpdateInfo>() {
+            @Override
+            public int compare(UpdateInfo lhs, UpdateInfo rhs) {
+                long lhsDate = lhs.getDate();
+                long rhsDate = rhs.getDate();
+                return lhsDate < rhsDate ? -1 : (lhsDate == rhsDate ? 0 : 1);
+            }
+        });
 
-        UpdatesJsonObjectRequest request = buildRequest(sourceIncremental);
+        ArrayList<String> incrementals = new ArrayList<String>();
+        for (UpdateInfo ui : builds) {
+            incrementals.add(ui.getIncremental());
+        }
+        return incrementals;
+    }
+
+    private UpdateInfo getIncremental(String sourceIncremental, String targetIncremental) {
+        Log.d(TAG, "Looking for incremental ota for source=" + sourceIncremental + ", target="
+                + targetIncremental);
+
+        // We need to make a blocking request here, queueing the download
+        // has to wait for the lookup anyway
+        RequestFuture<JSONObject> future = RequestFuture.newFuture();
+        UpdatesJsonObjectRequest request = buildRequest(sourceIncremental, targetIncremental,
+                future);
+        if (request == null) {
+            return null;
+        }
         ((UpdateApplication) getApplicationContext()).getQueue().add(request);
+
+        try {
+            JSONObject response = future.get();
+            VolleyLog.v("Response:%n %s", response);
+            return jsonToInfo(response);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while looking for incremental", e);
+        } catch (ExecutionException e) {
+            VolleyLog.e("Error: ", e.getMessage());
+        }
+        return null;
     }
 
     private String getServerUri() {
@@ -94,15 +260,17 @@ public class DownloadService extends IntentService
         return getString(R.string.conf_update_server_url_def);
     }
 
-    private UpdatesJsonObjectRequest buildRequest(String sourceIncremental) {
+    private UpdatesJsonObjectRequest buildRequest(String sourceIncremental,
+            String targetIncremental, RequestFuture<JSONObject> future) {
         URI requestUri = URI.create(getServerUri() + "/v1/build/get_delta");
         UpdatesJsonObjectRequest request;
 
         // Set request body
         try {
             request = new UpdatesJsonObjectRequest(requestUri.toASCIIString(),
-                    Utils.getUserAgentString(this), buildRequestBody(sourceIncremental),
-                    this, this);
+                    Utils.getUserAgentString(this),
+                    buildRequestBody(sourceIncremental, targetIncremental),
+                    future, future);
         } catch (JSONException e) {
             Log.e(TAG, "JSONException", e);
             return null;
@@ -111,10 +279,11 @@ public class DownloadService extends IntentService
         return request;
     }
 
-    private JSONObject buildRequestBody(String sourceIncremental) throws JSONException {
+    private JSONObject buildRequestBody(String sourceIncremental, String targetIncremental)
+            throws JSONException {
         JSONObject body = new JSONObject();
         body.put("source_incremental", sourceIncremental);
-        body.put("target_incremental", mInfo.getIncremental());
+        body.put("target_incremental", targetIncremental);
         return body;
     }
 
@@ -127,7 +296,11 @@ public class DownloadService extends IntentService
             return new UpdateInfo.Builder()
                     .setFileName(obj.getString("filename"))
                     .setDownloadUrl(obj.getString("download_url"))
+                    .setMirrorUrls(UpdateCheckService.parseMirrorUrls(obj))
                     .setMD5Sum(obj.getString("md5sum"))
+                    .setSHA256Sum(obj.optString("sha256", null))
+                    .setCRC32(obj.optString("crc32", null))
+                    .setChunkManifest(ChunkManifest.fromJSON(obj))
                     .setApiLevel(mInfo.getApiLevel())
                     .setBuildDate(obj.getLong("date_created_unix"))
                     .setType(UpdateInfo.Type.INCREMENTAL)
@@ -139,70 +312,201 @@ public class DownloadService extends IntentService
         }
     }
 
-    private long enqueueDownload(String downloadUrl, String localFilePath) {
-        DownloadManager.Request request = new DownloadManager.Request(Uri.parse(downloadUrl));
-        String userAgent = Utils.getUserAgentString(this);
-        if (userAgent != null) {
-            request.addRequestHeader("User-Agent", userAgent);
+    /**
+     * @return the entry of the first incremental, which queues the others
+     *         one after the other as they complete
+     */
+    private DownloadQueue.Entry makeIncrementalEntry(List<IncrementalPlanner.Hop> hops,
+            int priority) {
+        DownloadQueue.Entry first = null;
+        String firstPath = null;
+        for (IncrementalPlanner.Hop hop : hops) {
+            Log.v(TAG, "Queueing incremental zip: " + hop.info.getDownloadUrl());
+            // Build the name of the file to download, adding .partial at the end.  It will get
+            // stripped off when the download completes
+            String fileName = "incremental-" + hop.source + "-" + hop.target + ".zip";
+            String path = getUpdateDirectory().getAbsolutePath() + "/" + fileName;
+
+            DownloadQueue.Entry entry = makeEntry(hop.info, "file://" + path + ".partial",
+                    priority);
+            entry.size = hop.size;
+            entry.incrementalFor = mInfo.getFileName();
+            if (first == null) {
+                first = entry;
+                firstPath = path;
+            } else {
+                entry.firstHopPath = firstPath;
+                first.nextHops.add(entry);
+            }
         }
-        request.setTitle(getString(R.string.app_name));
-        request.setDestinationUri(Uri.parse(localFilePath));
-        request.setAllowedOverRoaming(false);
-        request.setVisibleInDownloadsUi(false);
-
-        // TODO: this could/should be made configurable
-        request.setAllowedOverMetered(true);
-
-        final DownloadManager dm = (DownloadManager) getSystemService(Context.DOWNLOAD_SERVICE);
-        return dm.enqueue(request);
+        return first;
     }
 
-    private void downloadIncremental(UpdateInfo incrementalUpdateInfo) {
-        Log.v(TAG, "Downloading incremental zip: " + incrementalUpdateInfo.getDownloadUrl());
+    private DownloadQueue.Entry makeFullZipEntry(int priority) {
+        Log.v(TAG, "Queueing full zip");
+
         // Build the name of the file to download, adding .partial at the end.  It will get
         // stripped off when the download completes
-        String sourceIncremental = Utils.getIncremental();
-        String targetIncremental = mInfo.getIncremental();
-        String fileName = "incremental-" + sourceIncremental + "-" + targetIncremental + ".zip";
-        String incrementalFilePath = "file://" + getUpdateDirectory().getAbsolutePath() + "/" + fileName + ".partial";
+        String fullFilePath = "file://" + getUpdateDirectory().getAbsolutePath() +
+                "/" + mInfo.getFileName() + ".partial";
+
+        return makeEntry(mInfo, fullFilePath, priority);
+    }
 
-        long downloadId = enqueueDownload(incrementalUpdateInfo.getDownloadUrl(), incrementalFilePath);
+    private DownloadQueue.Entry makeEntry(UpdateInfo downloadInfo, String localFilePath,
+            int priority) {
+        DownloadQueue.Entry entry = new DownloadQueue.Entry();
+        entry.key = mInfo.getFileName();
+        entry.url = downloadInfo.getDownloadUrl();
+        entry.mirrorUrls.addAll(downloadInfo.getMirrorUrls());
+        entry.localPath = localFilePath;
+        entry.md5 = downloadInfo.getMD5Sum();
+        entry.sha256 = downloadInfo.getSHA256Sum();
+        entry.crc32 = downloadInfo.getCRC32();
+        ChunkManifest manifest = downloadInfo.getChunkManifest();
+        entry.chunks = manifest != null ? manifest.toJSONString() : null;
+        entry.blockMapUrl = downloadInfo.getBlockMapUrl();
+        entry.priority = priority;
+        return entry;
+    }
 
-        // Store in shared preferences
-        mPrefs.edit()
-                .putLong(Constants.DOWNLOAD_ID, downloadId)
-                .putString(Constants.DOWNLOAD_MD5, incrementalUpdateInfo.getMD5Sum())
-                .putString(Constants.DOWNLOAD_INCREMENTAL_FOR, mInfo.getFileName())
-                .apply();
+    /**
+     * Checks that the file, and the files of the downloads queued before it,
+     * fit on the update volume. Fills in the size of the entry on the way,
+     * unless the incremental planner already knows it.
+     */
+    private boolean hasSpaceFor(DownloadQueue.Entry entry) {
+        if (entry.size < 0) {
+            entry.size = Preflight.getRemoteSize(entry.url, Utils.getUserAgentString(this));
+        }
+        if (entry.size < 0) {
+            // Nothing to go by, the download itself will find out
+            return true;
+        }
 
-        Utils.cancelNotification(this);
+        long needed = getMissingBytes(entry);
+        for (DownloadQueue.Entry queued : DownloadQueue.getEntries()) {
+            // Verified files were already renamed and have all the space they need
+            if (queued.state != DownloadQueue.STATE_VERIFYING) {
+                needed += getMissingBytes(queued);
+            } else {
+                needed += getMissingBytes(queued.takeNextHop());
+            }
+        }
+        return Preflight.hasSpaceFor(getUpdateDirectory(), needed);
+    }
+
+    /**
+     * @return the bytes the download and the incrementals after it still need
+     */
+    private static long getMissingBytes(DownloadQueue.Entry entry) {
+        long missing = 0;
+        for (; entry != null; entry = entry.takeNextHop()) {
+            if (entry.size >= 0) {
+                missing += Preflight.getMissingBytes(entry.getPartialFile(), entry.size);
+            }
+        }
+        return missing;
+    }
+
+    private void rejectDownload(DownloadQueue.Entry entry) {
+        Log.w(TAG, "Not enough space to download " + entry.url + " (" + entry.size + " bytes)");
+        if (entry.priority == DownloadQueue.PRIORITY_BACKGROUND) {
+            // Nobody asked for a prefetch, the user only hears about the update
+            PrefetchJobService.onPrefetchDone(this);
+            return;
+        }
+
+        Intent updateIntent = new Intent(this, UpdatesSettings.class);
+        updateIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
+                Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
+        DownloadNotifier.notifyDownloadError(this, updateIntent, R.string.download_no_space);
 
-        Intent intent = new Intent(DownloadReceiver.ACTION_DOWNLOAD_STARTED);
-        intent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, downloadId);
+        Intent intent = new Intent(DownloadReceiver.ACTION_DOWNLOAD_REJECTED);
+        intent.putExtra(DownloadReceiver.EXTRA_UPDATE_KEY, entry.key);
         sendBroadcast(intent);
     }
 
-    private void downloadFullZip() {
-        Log.v(TAG, "Downloading full zip");
+    private void startQueuedDownloads() {
+        for (DownloadQueue.Entry entry :
+                DownloadQueue.getStartable(Downloads.getMaxConcurrentDownloads(this),
+                        PrefetchJobService.isRunning())) {
+            long downloadId = enqueueDownload(entry);
+            if (!DownloadQueue.setStarted(entry.key, downloadId)) {
+                // Cancelled while we were starting it
+                Downloads.remove(this, downloadId, true);
+                continue;
+            }
+            if (Downloads.isBuiltin(downloadId)) {
+                BuiltinDownloadService.start(this, downloadId);
+            }
 
-        // Build the name of the file to download, adding .partial at the end.  It will get
-        // stripped off when the download completes
-        String fullFilePath = "file://" + getUpdateDirectory().getAbsolutePath() +
-                "/" + mInfo.getFileName() + ".partial";
+            Intent intent = new Intent(DownloadReceiver.ACTION_DOWNLOAD_STARTED);
+            intent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, downloadId);
+            sendBroadcast(intent);
+        }
+    }
 
-        long downloadId = enqueueDownload(mInfo.getDownloadUrl(), fullFilePath);
+    private long enqueueDownload(DownloadQueue.Entry entry) {
+        Log.v(TAG, "Starting download of " + entry);
+        if (Downloads.useBuiltinEngine(this)) {
+            Set<String> algorithms = entry.getDigests().keySet();
+            StreamingDownload download = Downloads.createBuiltin(entry.url, entry.mirrorUrls,
+                    entry.getPartialFile(), Utils.getUserAgentString(this),
+                    algorithms.toArray(new String[algorithms.size()]),
+                    new SegmentController(Downloads.getConnectionCount(this)),
+                    Downloads.getRateLimiter(this));
+            if (entry.blockMapUrl != null) {
+                download.setBlockReuse(entry.blockMapUrl, getSeedFiles());
+            }
+            return download.getId();
+        }
 
-        // Store in shared preferences
-        mPrefs.edit()
-                .putLong(Constants.DOWNLOAD_ID, downloadId)
-                .putString(Constants.DOWNLOAD_MD5, mInfo.getMD5Sum())
-                .apply();
+        DownloadManager.Request request = new DownloadManager.Request(Uri.parse(entry.url));
+        String userAgent = Utils.getUserAgentString(this);
+        if (userAgent != null) {
+            request.addRequestHeader("User-Agent", userAgent);
+        }
+        request.setTitle(getString(R.string.app_name));
+        request.setDestinationUri(Uri.parse(entry.localPath));
+        request.setAllowedOverRoaming(false);
+        request.setVisibleInDownloadsUi(false);
 
-        Utils.cancelNotification(this);
+        // Prefetches wait for an unmetered network, what the user asked for doesn't
+        request.setAllowedOverMetered(entry.priority >= DownloadQueue.PRIORITY_USER);
 
-        Intent intent = new Intent(DownloadReceiver.ACTION_DOWNLOAD_STARTED);
-        intent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, downloadId);
-        sendBroadcast(intent);
+        final DownloadManager dm = (DownloadManager) getSystemService(Context.DOWNLOAD_SERVICE);
+        return dm.enqueue(request);
+    }
+
+    /**
+     * @return the full build zips in the update folder, newest first, which
+     *         are the most likely to share blocks with the next build
+     */
+    private List<File> getSeedFiles() {
+        ArrayList<File> seeds = new ArrayList<File>();
+        File[] files = getUpdateDirectory().listFiles(new UpdateFilter(".zip"));
+        if (files != null) {
+            for (File file : files) {
+                // Incrementals are patches, they hardly share blocks with a full build
+                if (!file.getName().startsWith("incremental-")) {
+                    seeds.add(file);
+                }
+            }
+        }
+        Collections.sort(seeds, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified > rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        // Each one is read in full, a few recent builds have all there is to find
+        while (seeds.size() > MAX_SEED_FILES) {
+            seeds.remove(seeds.size() - 1);
+        }
+        return seeds;
     }
 
     private File getUpdateDirectory() {
@@ -215,21 +519,4 @@ public class DownloadService extends IntentService
 
         return directory;
     }
-
-    @Override
-    public void onErrorResponse(VolleyError error) {
-        VolleyLog.e("Error: ", error.getMessage());
-    }
-
-    @Override
-    public void onResponse(JSONObject response) {
-        VolleyLog.v("Response:%n %s", response);
-
-        UpdateInfo incrementalUpdateInfo = jsonToInfo(response);
-        if (incrementalUpdateInfo == null) {
-            downloadFullZip();
-        } else {
-            downloadIncremental(incrementalUpdateInfo);
-        }
-    }
 }
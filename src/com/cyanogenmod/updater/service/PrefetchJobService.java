@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.service;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.cyanogenmod.updater.UpdateApplication;
+import com.cyanogenmod.updater.download.DownloadQueue;
+import com.cyanogenmod.updater.download.Downloads;
+import com.cyanogenmod.updater.misc.Constants;
+import com.cyanogenmod.updater.misc.UpdateCatalog;
+import com.cyanogenmod.updater.misc.UpdateInfo;
+import com.cyanogenmod.updater.utils.Utils;
+
+import java.io.File;
+
+/**
+ * Downloads the newest build in the background once the device is idle,
+ * charging and on an unmetered network, so it is ready to install when the
+ * user gets to it. It only runs if the user opted in. The job lasts until the
+ * download is done, and background downloads only run while it does.
+ */
+public class PrefetchJobService extends JobService {
+    private static final String TAG = "PrefetchJobService";
+
+    private static final int JOB_ID = 1;
+    // Users hear about new builds by then, even if the prefetch couldn't run
+    private static final long NOTIFY_DEADLINE = 6 * 60 * 60 * 1000; // 6 hours
+
+    // The job that is waiting for a background download, null if there is none
+    private static PrefetchJobService sRunningJob;
+    private static JobParameters sRunningParams;
+
+    /**
+     * Schedules the prefetch if the user asked for it. The job outlives
+     * reboots. If it can't run within a few hours, the user is told about the
+     * updates anyway.
+     */
+    public static void schedule(Context context) {
+        schedule(context, true);
+    }
+
+    private static void schedule(Context context, boolean withDeadline) {
+        if (!isEnabled(context)) {
+            return;
+        }
+        JobScheduler js =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (withDeadline) {
+            for (JobInfo pending : js.getAllPendingJobs()) {
+                if (pending.getId() == JOB_ID && pending.hasLateConstraint()) {
+                    // A later check mustn't push the deadline back
+                    return;
+                }
+            }
+        }
+
+        JobInfo.Builder builder = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, PrefetchJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setPersisted(true);
+        if (withDeadline) {
+            builder.setOverrideDeadline(NOTIFY_DEADLINE);
+        }
+        if (js.schedule(builder.build()) != JobScheduler.RESULT_SUCCESS) {
+            Log.w(TAG, "Unable to schedule the prefetch");
+        }
+    }
+
+    /**
+     * Cancels the job, and stops and forgets the downloads it started
+     */
+    public static void cancel(Context context) {
+        JobScheduler js =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        js.cancel(JOB_ID);
+        finishRunningJob();
+        for (DownloadQueue.Entry entry : DownloadQueue.getEntries()) {
+            if (entry.priority == DownloadQueue.PRIORITY_BACKGROUND
+                    && entry.state != DownloadQueue.STATE_VERIFYING) {
+                // Keep the partial file, the user may still want the build
+                if (entry.id >= 0) {
+                    Downloads.remove(context, entry.id, true);
+                }
+                DownloadQueue.removeByKey(entry.key);
+            }
+        }
+    }
+
+    public static boolean isEnabled(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(Constants.PREFETCH_PREF, false);
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        if (!isEnabled(this)) {
+            return false;
+        }
+
+        synchronized (PrefetchJobService.class) {
+            sRunningJob = this;
+            sRunningParams = params;
+        }
+        final boolean deadlineExpired = params.isOverrideDeadlineExpired();
+        // Mapping and decoding the catalog is disk work, keep it off the main thread
+        new Thread() {
+            @Override
+            public void run() {
+                if (deadlineExpired) {
+                    // The conditions aren't met, so only tell the user and
+                    // keep waiting for them
+                    Log.d(TAG, "Prefetch deadline expired");
+                    schedule(PrefetchJobService.this, false);
+                    onPrefetchDone(PrefetchJobService.this);
+                } else if (!prefetchNewest()) {
+                    onPrefetchDone(PrefetchJobService.this);
+                }
+            }
+        }.start();
+        // Held until the download is done, so it stops with the conditions
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        synchronized (PrefetchJobService.class) {
+            if (sRunningJob != this) {
+                return false;
+            }
+            sRunningJob = null;
+            sRunningParams = null;
+        }
+        // The device is in use, or off the charger or the unmetered network.
+        // Background downloads stop where they are and continue next time.
+        Log.i(TAG, "Prefetch interrupted");
+        stopBackgroundDownloads(this);
+        return true;
+    }
+
+    /**
+     * @return whether the job is running, so background downloads may start
+     */
+    public static synchronized boolean isRunning() {
+        return sRunningJob != null;
+    }
+
+    private static void finishRunningJob() {
+        PrefetchJobService job;
+        JobParameters params;
+        synchronized (PrefetchJobService.class) {
+            job = sRunningJob;
+            params = sRunningParams;
+            sRunningJob = null;
+            sRunningParams = null;
+        }
+        if (job != null) {
+            job.jobFinished(params, false);
+        }
+    }
+
+    /**
+     * Stops the running built-in background downloads and queues them again,
+     * keeping their partial files. DownloadManager only runs them on
+     * unmetered networks by itself.
+     */
+    private static void stopBackgroundDownloads(Context context) {
+        for (DownloadQueue.Entry entry : DownloadQueue.getEntries()) {
+            if (entry.priority == DownloadQueue.PRIORITY_BACKGROUND
+                    && entry.state == DownloadQueue.STATE_RUNNING
+                    && Downloads.isBuiltin(entry.id)) {
+                Downloads.remove(context, entry.id, true);
+                DownloadQueue.requeue(entry.id);
+            }
+        }
+    }
+
+    /**
+     * @return whether a background download was started and the job has to
+     *         wait for it. If not, the check left telling the user to us.
+     */
+    private boolean prefetchNewest() {
+        UpdateCatalog catalog = ((UpdateApplication) getApplicationContext()).getCatalog();
+        UpdateInfo newest = catalog.getNewestNewerThanInstalled();
+        if (newest == null) {
+            Log.d(TAG, "Nothing to prefetch");
+            return false;
+        }
+
+        File file = new File(Utils.makeUpdateFolder(), newest.getFileName());
+        if (file.exists()) {
+            Log.d(TAG, newest.getFileName() + " is already downloaded");
+            return false;
+        }
+        DownloadQueue.Entry queued = DownloadQueue.findByKey(newest.getFileName());
+        if (queued != null) {
+            if (queued.priority != DownloadQueue.PRIORITY_BACKGROUND) {
+                Log.d(TAG, newest.getFileName() + " is already queued");
+                return false;
+            }
+            // Stopped by an earlier run, it goes on from its partial file
+            Log.i(TAG, "Continuing the prefetch of " + newest.getFileName());
+            DownloadService.schedule(this);
+            return true;
+        }
+
+        // The download service takes it from here, and verifies the build
+        // once it is complete, like any other download
+        Log.i(TAG, "Prefetching " + newest.getFileName());
+        DownloadService.start(this, newest, DownloadQueue.PRIORITY_BACKGROUND);
+        return true;
+    }
+
+    /**
+     * Tells the user about the available updates once a prefetch is over,
+     * whether or not it got the build
+     */
+    public static void onPrefetchDone(Context context) {
+        if (!((UpdateApplication) context.getApplicationContext()).isMainActivityActive()) {
+            UpdateCheckService.notifyUpdatesFound(context);
+        }
+        finishRunningJob();
+    }
+}
@@ -12,6 +12,7 @@ package com.cyanogenmod.updater.service;
 import android.app.IntentService;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
@@ -31,8 +32,9 @@ import com.cyanogenmod.updater.R;
 import com.cyanogenmod.updater.UpdateApplication;
 import com.cyanogenmod.updater.requests.UpdatesJsonObjectRequest;
 import com.cyanogenmod.updater.UpdatesSettings;
+import com.cyanogenmod.updater.misc.ChunkManifest;
 import com.cyanogenmod.updater.misc.Constants;
-import com.cyanogenmod.updater.misc.State;
+import com.cyanogenmod.updater.misc.UpdateCatalog;
 import com.cyanogenmod.updater.misc.UpdateInfo;
 import com.cyanogenmod.updater.receiver.DownloadReceiver;
 import com.cyanogenmod.updater.utils.Utils;
@@ -42,10 +44,12 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
 
 public class UpdateCheckService extends IntentService
         implements Response.ErrorListener, Response.Listener<JSONObject> {
@@ -76,6 +80,9 @@ public class UpdateCheckService extends IntentService
     private static final int UPDATE_REQUEST_TIMEOUT = 5000; // 5 seconds
     private static final int UPDATE_REQUEST_MAX_RETRIES = 3;
 
+    // The request whose response is awaited, for the validators it came with
+    private UpdatesJsonObjectRequest mRequest;
+
     public UpdateCheckService() {
         super("UpdateCheckService");
     }
@@ -108,12 +115,7 @@ public class UpdateCheckService extends IntentService
             return;
         }
 
-        // Store the last update check time and ensure boot check completed is true
-        Date d = new Date();
-        PreferenceManager.getDefaultSharedPreferences(UpdateCheckService.this).edit()
-                .putLong(Constants.LAST_UPDATE_CHECK_PREF, d.getTime())
-                .putBoolean(Constants.BOOT_CHECK_COMPLETED, true)
-                .apply();
+        Date d = recordCheckTime();
 
         int realUpdateCount = finishedIntent.getIntExtra(EXTRA_REAL_UPDATE_COUNT, 0);
         UpdateApplication app = (UpdateApplication) getApplicationContext();
@@ -124,82 +126,111 @@ public class UpdateCheckService extends IntentService
                 + realUpdateCount + " newer than installed)");
 
         if (realUpdateCount != 0 && !app.isMainActivityActive()) {
-            // There are updates available
-            // The notification should launch the main app
-            Intent i = new Intent(this, UpdatesSettings.class);
-            i.putExtra(UpdatesSettings.EXTRA_UPDATE_LIST_UPDATED, true);
-            PendingIntent contentIntent = PendingIntent.getActivity(this, 0, i,
-                    PendingIntent.FLAG_ONE_SHOT);
-
-            Resources res = getResources();
-            String text = res.getQuantityString(R.plurals.not_new_updates_found_body,
-                    realUpdateCount, realUpdateCount);
-
-            // Get the notification ready
-            NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
-                    .setSmallIcon(R.drawable.ic_system_update)
-                    .setWhen(System.currentTimeMillis())
-                    .setTicker(res.getString(R.string.not_new_updates_found_ticker))
-                    .setContentTitle(res.getString(R.string.not_new_updates_found_title))
-                    .setContentText(text)
-                    .setContentIntent(contentIntent)
-                    .setLocalOnly(true)
-                    .setAutoCancel(true);
-
-            LinkedList<UpdateInfo> realUpdates = new LinkedList<UpdateInfo>();
-            for (UpdateInfo ui : availableUpdates) {
-                if (ui.isNewerThanInstalled()) {
-                    realUpdates.add(ui);
-                }
+            if (PrefetchJobService.isEnabled(this)) {
+                // Told once the prefetch is done, so the build is ready by then
+                Log.d(TAG, "Deferring the notification until the prefetch completes");
+            } else {
+                notifyUpdatesFound(this);
             }
+        }
 
-            Collections.sort(realUpdates, new Comparator<UpdateInfo>() {
-                @Override
-                public int compare(UpdateInfo lhs, UpdateInfo rhs) {
-                    /* sort by date descending */
-                    long lhsDate = lhs.getDate();
-                    long rhsDate = rhs.getDate();
-                    if (lhsDate == rhsDate) {
-                        return 0;
-                    }
-                    return lhsDate < rhsDate ? 1 : -1;
-                }
-            });
+        sendBroadcast(finishedIntent);
+    }
 
-            NotificationCompat.InboxStyle inbox = new NotificationCompat.InboxStyle(builder)
-                    .setBigContentTitle(text);
-            int added = 0, count = realUpdates.size();
+    /**
+     * Posts the notification listing the stored updates that are newer than
+     * the installed build, if there are any
+     */
+    public static void notifyUpdatesFound(Context context) {
+        UpdateCatalog catalog = ((UpdateApplication) context.getApplicationContext()).getCatalog();
+        LinkedList<UpdateInfo> realUpdates = catalog.getNewerThanInstalled();
+        int count = realUpdates.size();
+        if (count == 0) {
+            return;
+        }
 
-            for (UpdateInfo ui : realUpdates) {
-                if (added < EXPANDED_NOTIF_UPDATE_COUNT) {
-                    inbox.addLine(ui.getName());
-                    added++;
+        // The notification should launch the main app
+        Intent i = new Intent(context, UpdatesSettings.class);
+        i.putExtra(UpdatesSettings.EXTRA_UPDATE_LIST_UPDATED, true);
+        PendingIntent contentIntent = PendingIntent.getActivity(context, 0, i,
+                PendingIntent.FLAG_ONE_SHOT);
+
+        Resources res = context.getResources();
+        String text = res.getQuantityString(R.plurals.not_new_updates_found_body,
+                count, count);
+
+        // Get the notification ready
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context)
+                .setSmallIcon(R.drawable.ic_system_update)
+                .setWhen(System.currentTimeMillis())
+                .setTicker(res.getString(R.string.not_new_updates_found_ticker))
+                .setContentTitle(res.getString(R.string.not_new_updates_found_title))
+                .setContentText(text)
+                .setContentIntent(contentIntent)
+                .setLocalOnly(true)
+                .setAutoCancel(true);
+
+        Collections.sort(realUpdates, new Comparator<UpdateInfo>() {
+            @Override
+            public int compare(UpdateInfo lhs, UpdateInfo rhs) {
+                /* sort by date descending */
+                long lhsDate = lhs.getDate();
+                long rhsDate = rhs.getDate();
+                if (lhsDate == rhsDate) {
+                    return 0;
                 }
+                return lhsDate < rhsDate ? 1 : -1;
             }
-            if (added != count) {
-                inbox.setSummaryText(res.getQuantityString(R.plurals.not_additional_count,
-                        count - added, count - added));
-            }
-            builder.setStyle(inbox);
-            builder.setNumber(availableUpdates.size());
-
-            if (count == 1) {
-                i = new Intent(this, DownloadReceiver.class);
-                i.setAction(DownloadReceiver.ACTION_START_DOWNLOAD);
-                i.putExtra(DownloadReceiver.EXTRA_UPDATE_INFO, (Parcelable) realUpdates.getFirst());
-                PendingIntent downloadIntent = PendingIntent.getBroadcast(this, 0, i,
-                        PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_UPDATE_CURRENT);
-
-                builder.addAction(R.drawable.ic_tab_download,
-                        res.getString(R.string.not_action_download), downloadIntent);
-            }
+        });
+
+        NotificationCompat.InboxStyle inbox = new NotificationCompat.InboxStyle(builder)
+                .setBigContentTitle(text);
+        int added = 0;
 
-            // Trigger the notification
-            NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-            nm.notify(R.string.not_new_updates_found_title, builder.build());
+        for (UpdateInfo ui : realUpdates) {
+            if (added < EXPANDED_NOTIF_UPDATE_COUNT) {
+                inbox.addLine(ui.getName());
+                added++;
+            }
+        }
+        if (added != count) {
+            inbox.setSummaryText(res.getQuantityString(R.plurals.not_additional_count,
+                    count - added, count - added));
+        }
+        builder.setStyle(inbox);
+        builder.setNumber(catalog.size());
+
+        if (count == 1) {
+            i = new Intent(context, DownloadReceiver.class);
+            i.setAction(DownloadReceiver.ACTION_START_DOWNLOAD);
+            i.putExtra(DownloadReceiver.EXTRA_UPDATE_INFO, (Parcelable) realUpdates.getFirst());
+            PendingIntent downloadIntent = PendingIntent.getBroadcast(context, 0, i,
+                    PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_UPDATE_CURRENT);
+
+            builder.addAction(R.drawable.ic_tab_download,
+                    res.getString(R.string.not_action_download), downloadIntent);
         }
 
-        sendBroadcast(finishedIntent);
+        // Trigger the notification
+        NotificationManager nm =
+                (NotificationManager) context.getSystemService(NOTIFICATION_SERVICE);
+        nm.notify(R.string.not_new_updates_found_title, builder.build());
+    }
+
+    /**
+     * Stores the last update check time and ensures boot check completed is true
+     */
+    private Date recordCheckTime() {
+        Date d = new Date();
+        PreferenceManager.getDefaultSharedPreferences(UpdateCheckService.this).edit()
+                .putLong(Constants.LAST_UPDATE_CHECK_PREF, d.getTime())
+                .putBoolean(Constants.BOOT_CHECK_COMPLETED, true)
+                .apply();
+        return d;
+    }
+
+    private UpdateCatalog getCatalog() {
+        return ((UpdateApplication) getApplicationContext()).getCatalog();
     }
 
     private URI getServerURI() {
@@ -222,6 +253,7 @@ public class UpdateCheckService extends IntentService
         try {
             request = new UpdatesJsonObjectRequest(updateServerUri.toASCIIString(),
                     Utils.getUserAgentString(this), buildUpdateRequest(updateType), this, this);
+            addValidators(request);
             // Improve request error tolerance
             request.setRetryPolicy(new DefaultRetryPolicy(UPDATE_REQUEST_TIMEOUT,
                         UPDATE_REQUEST_MAX_RETRIES, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
@@ -232,9 +264,42 @@ public class UpdateCheckService extends IntentService
             return;
         }
 
+        mRequest = request;
         ((UpdateApplication) getApplicationContext()).getQueue().add(request);
     }
 
+    /**
+     * Lets the server answer with 304 if the list we have is still current.
+     * The validators only count for the exact request they were returned for,
+     * another device, channel or installed build gets a list of its own.
+     */
+    private void addValidators(UpdatesJsonObjectRequest request) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        if (!TextUtils.equals(request.getRequestJson(),
+                prefs.getString(Constants.LAST_UPDATE_REQUEST_PREF, null))
+                || !getCatalog().hasUpdates()) {
+            return;
+        }
+        request.setValidators(prefs.getString(Constants.LAST_UPDATE_ETAG_PREF, null),
+                prefs.getString(Constants.LAST_UPDATE_MODIFIED_PREF, null));
+    }
+
+    private void saveValidators(UpdatesJsonObjectRequest request) {
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(this).edit();
+        if (request != null && (request.getETag() != null
+                || request.getLastModified() != null)) {
+            editor.putString(Constants.LAST_UPDATE_REQUEST_PREF, request.getRequestJson())
+                    .putString(Constants.LAST_UPDATE_ETAG_PREF, request.getETag())
+                    .putString(Constants.LAST_UPDATE_MODIFIED_PREF, request.getLastModified());
+        } else {
+            editor.remove(Constants.LAST_UPDATE_REQUEST_PREF)
+                    .remove(Constants.LAST_UPDATE_ETAG_PREF)
+                    .remove(Constants.LAST_UPDATE_MODIFIED_PREF);
+        }
+        editor.apply();
+    }
+
     private JSONObject buildUpdateRequest(int updateType) throws JSONException {
         JSONArray channels = new JSONArray();
 
@@ -259,10 +324,9 @@ public class UpdateCheckService extends IntentService
         return request;
     }
 
-    private LinkedList<UpdateInfo> parseJSON(String jsonString, int updateType) {
+    private LinkedList<UpdateInfo> parseJSON(JSONObject result, int updateType) {
         LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
         try {
-            JSONObject result = new JSONObject(jsonString);
             JSONArray updateList = result.getJSONArray("result");
             int length = updateList.length();
 
@@ -288,8 +352,13 @@ public class UpdateCheckService extends IntentService
         UpdateInfo ui = new UpdateInfo.Builder()
                 .setFileName(obj.getString("filename"))
                 .setDownloadUrl(obj.getString("url"))
+                .setMirrorUrls(parseMirrorUrls(obj))
                 .setChangelogUrl(obj.getString("changes"))
                 .setMD5Sum(obj.getString("md5sum"))
+                .setSHA256Sum(obj.optString("sha256", null))
+                .setCRC32(obj.optString("crc32", null))
+                .setChunkManifest(ChunkManifest.fromJSON(obj))
+                .setBlockMapUrl(obj.optString("block_checksums", null))
                 .setApiLevel(obj.getInt("api_level"))
                 .setBuildDate(obj.getLong("timestamp"))
                 .setType(obj.getString("channel"))
@@ -304,6 +373,26 @@ public class UpdateCheckService extends IntentService
         return ui;
     }
 
+    /**
+     * Reads the optional "mirrors" array of a build JSON object
+     *
+     * @return the mirror urls, or null if there are none
+     */
+    static List<String> parseMirrorUrls(JSONObject obj) {
+        JSONArray mirrors = obj.optJSONArray("mirrors");
+        if (mirrors == null) {
+            return null;
+        }
+        ArrayList<String> mirrorUrls = new ArrayList<String>();
+        for (int i = 0; i < mirrors.length(); i++) {
+            String url = mirrors.optString(i);
+            if (!TextUtils.isEmpty(url)) {
+                mirrorUrls.add(url);
+            }
+        }
+        return mirrorUrls;
+    }
+
     @Override
     public void onErrorResponse(VolleyError volleyError) {
         VolleyLog.e("Error: ", volleyError.getMessage());
@@ -314,14 +403,21 @@ public class UpdateCheckService extends IntentService
 
     @Override
     public void onResponse(JSONObject jsonObject) {
+        final UpdatesJsonObjectRequest request = mRequest;
+        mRequest = null;
+        if (jsonObject == null) {
+            onNotModified();
+            return;
+        }
+
         int updateType = Utils.getUpdateType();
 
-        LinkedList<UpdateInfo> lastUpdates = State.loadState(this);
-        LinkedList<UpdateInfo> updates = parseJSON(jsonObject.toString(), updateType);
+        UpdateCatalog catalog = getCatalog();
+        LinkedList<UpdateInfo> updates = parseJSON(jsonObject, updateType);
 
         int newUpdates = 0, realUpdates = 0;
         for (UpdateInfo ui : updates) {
-            if (!lastUpdates.contains(ui)) {
+            if (!catalog.contains(ui)) {
                 newUpdates++;
             }
             if (ui.isNewerThanInstalled()) {
@@ -334,7 +430,39 @@ public class UpdateCheckService extends IntentService
         intent.putExtra(EXTRA_REAL_UPDATE_COUNT, realUpdates);
         intent.putExtra(EXTRA_NEW_UPDATE_COUNT, newUpdates);
 
+        // The validators only go with a list that made it to disk
+        catalog.setUpdates(updates, new Runnable() {
+            @Override
+            public void run() {
+                saveValidators(request);
+            }
+        });
         recordAvailableUpdates(updates, intent);
-        State.saveState(this, updates);
+        if (realUpdates > 0) {
+            PrefetchJobService.schedule(this);
+        }
+    }
+
+    /**
+     * The server still has the list we stored last time, so there is nothing
+     * to parse, store or notify about
+     */
+    private void onNotModified() {
+        UpdateCatalog catalog = getCatalog();
+        int count = catalog.size();
+        int realUpdates = catalog.countNewerThanInstalled();
+
+        Date d = recordCheckTime();
+        Log.i(TAG, "The update check completed at " + d + ", the "
+                + count + " known updates are unchanged");
+
+        Intent intent = new Intent(ACTION_CHECK_FINISHED);
+        intent.putExtra(EXTRA_UPDATE_COUNT, count);
+        intent.putExtra(EXTRA_REAL_UPDATE_COUNT, realUpdates);
+        intent.putExtra(EXTRA_NEW_UPDATE_COUNT, 0);
+        sendBroadcast(intent);
+        if (realUpdates > 0) {
+            PrefetchJobService.schedule(this);
+        }
     }
 }
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.utils;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Calculates the digests of a downloaded file, saving the state of every
+ * digest and the offset every few seconds. If the process gets killed halfway
+ * through, the next verification of the same download continues from the
+ * last checkpoint.
+ */
+public class CheckpointedDigest {
+    private static final String TAG = "CheckpointedDigest";
+    private static final String FILENAME = "digest.checkpoint";
+
+    private static final int VERSION = 2;
+    private static final long CHECKPOINT_INTERVAL = 2000; // 2 seconds
+
+    private static class Checkpoint {
+        long downloadId;
+        String path;
+        long length;
+        long lastModified;
+        long position;
+        ResumableMD5 md5;
+        ResumableSHA256 sha256;
+        ResumableCRC32 crc32;
+
+        boolean hasAlgorithms(String[] algorithms) {
+            for (String algorithm : algorithms) {
+                if ((MultiDigest.ALGORITHM_MD5.equals(algorithm) && md5 == null)
+                        || (MultiDigest.ALGORITHM_SHA256.equals(algorithm) && sha256 == null)
+                        || (MultiDigest.ALGORITHM_CRC32.equals(algorithm) && crc32 == null)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void update(byte[] buffer, int offset, int length) {
+            if (md5 != null) {
+                md5.update(buffer, offset, length);
+            }
+            if (sha256 != null) {
+                sha256.update(buffer, offset, length);
+            }
+            if (crc32 != null) {
+                crc32.update(buffer, offset, length);
+            }
+            position += length;
+        }
+    }
+
+    private CheckpointedDigest() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * @return whether all of the algorithms can be checkpointed
+     */
+    public static boolean isSupported(String... algorithms) {
+        for (String algorithm : algorithms) {
+            if (!MultiDigest.ALGORITHM_MD5.equals(algorithm)
+                    && !MultiDigest.ALGORITHM_SHA256.equals(algorithm)
+                    && !MultiDigest.ALGORITHM_CRC32.equals(algorithm)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the file whose verification for the given download was
+     *         interrupted, or null if there is none
+     */
+    public static File getInterruptedFile(Context context, long downloadId) {
+        Checkpoint checkpoint = load(context);
+        if (checkpoint == null || checkpoint.downloadId != downloadId) {
+            return null;
+        }
+        File file = new File(checkpoint.path);
+        return file.isFile() ? file : null;
+    }
+
+    public static void clear(Context context) {
+        getCheckpointFile(context).delete();
+    }
+
+    /**
+     * @return hex strings keyed by algorithm name, or null on error
+     */
+    public static HashMap<String, String> calculate(Context context, long downloadId,
+            File file, String... algorithms) {
+        // Unchanged files don't need to be hashed again
+        HashMap<String, String> cachedDigests = new HashMap<String, String>();
+        for (String algorithm : algorithms) {
+            String cachedDigest = DigestCache.get(file, algorithm);
+            if (cachedDigest == null) {
+                break;
+            }
+            cachedDigests.put(algorithm, cachedDigest);
+        }
+        if (cachedDigests.size() == algorithms.length) {
+            return cachedDigests;
+        }
+
+        Checkpoint checkpoint = load(context);
+        if (checkpoint == null || checkpoint.downloadId != downloadId
+                || !checkpoint.path.equals(file.getAbsolutePath())
+                || checkpoint.length != file.length()
+                || checkpoint.lastModified != file.lastModified()
+                || !checkpoint.hasAlgorithms(algorithms)) {
+            checkpoint = new Checkpoint();
+            checkpoint.downloadId = downloadId;
+            checkpoint.path = file.getAbsolutePath();
+            checkpoint.length = file.length();
+            checkpoint.lastModified = file.lastModified();
+            for (String algorithm : algorithms) {
+                if (MultiDigest.ALGORITHM_MD5.equals(algorithm)) {
+                    checkpoint.md5 = new ResumableMD5();
+                } else if (MultiDigest.ALGORITHM_SHA256.equals(algorithm)) {
+                    checkpoint.sha256 = new ResumableSHA256();
+                } else if (MultiDigest.ALGORITHM_CRC32.equals(algorithm)) {
+                    checkpoint.crc32 = new ResumableCRC32();
+                }
+            }
+        } else {
+            Log.d(TAG, "Resuming verification of " + file.getName()
+                    + " at " + checkpoint.position);
+        }
+
+        FileInputStream is;
+        try {
+            is = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Exception while getting FileInputStream", e);
+            return null;
+        }
+
+        byte[] buffer = new byte[MD5.getWindowSize()];
+        try {
+            long position = checkpoint.position;
+            if (is.skip(position) != position) {
+                throw new IOException("Unable to skip to " + position);
+            }
+
+            long nextCheckpoint = SystemClock.elapsedRealtime() + CHECKPOINT_INTERVAL;
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                checkpoint.update(buffer, 0, read);
+                long now = SystemClock.elapsedRealtime();
+                if (now >= nextCheckpoint) {
+                    save(context, checkpoint);
+                    nextCheckpoint = now + CHECKPOINT_INTERVAL;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to process " + file, e);
+            return null;
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception on closing input stream", e);
+            }
+        }
+
+        clear(context);
+        HashMap<String, String> calculatedDigests = new HashMap<String, String>();
+        if (checkpoint.md5 != null) {
+            calculatedDigests.put(MultiDigest.ALGORITHM_MD5,
+                    MD5.toHexString(checkpoint.md5.digest()));
+        }
+        if (checkpoint.sha256 != null) {
+            calculatedDigests.put(MultiDigest.ALGORITHM_SHA256,
+                    MD5.toHexString(checkpoint.sha256.digest()));
+        }
+        if (checkpoint.crc32 != null) {
+            calculatedDigests.put(MultiDigest.ALGORITHM_CRC32,
+                    String.format("%08x", checkpoint.crc32.getValue()));
+        }
+        DigestCache.putAll(file, calculatedDigests);
+        return calculatedDigests;
+    }
+
+    private static File getCheckpointFile(Context context) {
+        return new File(context.getFilesDir(), FILENAME);
+    }
+
+    private static Checkpoint load(Context context) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(getCheckpointFile(context))));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            Checkpoint checkpoint = new Checkpoint();
+            checkpoint.downloadId = in.readLong();
+            checkpoint.path = in.readUTF();
+            checkpoint.length = in.readLong();
+            checkpoint.lastModified = in.readLong();
+            checkpoint.position = in.readLong();
+            if (in.readBoolean()) {
+                checkpoint.md5 = ResumableMD5.restoreState(in);
+            }
+            if (in.readBoolean()) {
+                checkpoint.sha256 = ResumableSHA256.restoreState(in);
+            }
+            if (in.readBoolean()) {
+                checkpoint.crc32 = ResumableCRC32.restoreState(in);
+            }
+            return checkpoint;
+        } catch (FileNotFoundException e) {
+            // No verification in progress
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading checkpoint", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+    }
+
+    private static void save(Context context, Checkpoint checkpoint) {
+        File checkpointFile = getCheckpointFile(context);
+        File tmpFile = new File(checkpointFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(VERSION);
+            out.writeLong(checkpoint.downloadId);
+            out.writeUTF(checkpoint.path);
+            out.writeLong(checkpoint.length);
+            out.writeLong(checkpoint.lastModified);
+            out.writeLong(checkpoint.position);
+            out.writeBoolean(checkpoint.md5 != null);
+            if (checkpoint.md5 != null) {
+                checkpoint.md5.saveState(out);
+            }
+            out.writeBoolean(checkpoint.sha256 != null);
+            if (checkpoint.sha256 != null) {
+                checkpoint.sha256.saveState(out);
+            }
+            out.writeBoolean(checkpoint.crc32 != null);
+            if (checkpoint.crc32 != null) {
+                checkpoint.crc32.saveState(out);
+            }
+            out.close();
+            out = null;
+            written = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on saving checkpoint", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+
+        // Rename over the old checkpoint, so a crash never leaves a torn one behind
+        if (written && !tmpFile.renameTo(checkpointFile)) {
+            Log.e(TAG, "Unable to replace " + checkpointFile);
+        }
+    }
+}
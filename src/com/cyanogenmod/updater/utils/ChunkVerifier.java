@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.utils;
+
+import android.util.Log;
+
+import com.cyanogenmod.updater.misc.ChunkManifest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Verifies a file against a ChunkManifest, hashing the chunks in parallel on
+ * all cores, and reports the byte ranges that do not match.
+ */
+public class ChunkVerifier {
+    private static final String TAG = "ChunkVerifier";
+
+    /**
+     * Byte range of a file, end is exclusive
+     */
+    public static class Range {
+        public final long start;
+        public final long end;
+
+        public Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long length() {
+            return end - start;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + ", " + end + ")";
+        }
+    }
+
+    private ChunkVerifier() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * @return the corrupt or missing ranges (adjacent bad chunks merged), an
+     *         empty list if the file is intact, or null if it could not be read
+     */
+    public static List<Range> findCorruptRanges(File file, ChunkManifest manifest) {
+        final long chunkSize = manifest.getChunkSize();
+        final int chunkCount = manifest.getChunkCount();
+        final long fileLength = file.length();
+
+        if (chunkSize > Integer.MAX_VALUE) {
+            Log.e(TAG, "Unsupported chunk size " + chunkSize);
+            return null;
+        }
+
+        final FileInputStream is;
+        try {
+            is = new FileInputStream(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception while opening " + file, e);
+            return null;
+        }
+        final FileChannel channel = is.getChannel();
+
+        int threads = Math.max(1, Math.min(chunkCount, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocate((int) chunkSize);
+            }
+        };
+
+        ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>(chunkCount);
+        try {
+            for (int i = 0; i < chunkCount; i++) {
+                final int chunk = i;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException, NoSuchAlgorithmException {
+                        return verifyChunk(channel, buffers.get(), chunk, chunkSize,
+                                manifest.getDigest(chunk));
+                    }
+                }));
+            }
+
+            ArrayList<Range> corrupt = new ArrayList<Range>();
+            for (int i = 0; i < chunkCount; i++) {
+                if (results.get(i).get()) {
+                    continue;
+                }
+                long start = i * chunkSize;
+                long end = start + chunkSize;
+                Range last = corrupt.isEmpty() ? null : corrupt.get(corrupt.size() - 1);
+                if (last != null && last.end == start) {
+                    corrupt.set(corrupt.size() - 1, new Range(last.start, end));
+                } else {
+                    corrupt.add(new Range(start, end));
+                }
+            }
+
+            if (fileLength > chunkCount * chunkSize) {
+                Log.d(TAG, file + " is longer than the manifest, " + fileLength + " bytes");
+            }
+            return corrupt;
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while verifying " + file, e);
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Exception while verifying " + file, e.getCause());
+            return null;
+        } finally {
+            executor.shutdownNow();
+            try {
+                is.close();
+            } catch (IOException e) {
+                // ignored, can't do anything anyway
+            }
+        }
+    }
+
+    private static boolean verifyChunk(FileChannel channel, ByteBuffer buffer, int chunk,
+            long chunkSize, String expected) throws IOException, NoSuchAlgorithmException {
+        long position = chunk * chunkSize;
+        buffer.clear();
+
+        // Positional reads don't move the channel's position, so the chunks
+        // can be read concurrently through the same channel
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        if (buffer.position() == 0) {
+            // Chunk is missing entirely
+            return false;
+        }
+
+        MessageDigest digest = MessageDigest.getInstance(MultiDigest.ALGORITHM_SHA256);
+        digest.update(buffer.array(), 0, buffer.position());
+        return MD5.toHexString(digest.digest()).equalsIgnoreCase(expected);
+    }
+}
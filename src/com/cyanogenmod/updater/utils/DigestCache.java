@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent cache of file digests, keyed by absolute path and algorithm.
+ * An entry is only valid while the file still has the length and modification
+ * time it had when it was hashed, so changed files are rehashed automatically.
+ * Looked up by digest, it also works as a content addressed index of the
+ * files that were hashed before.
+ */
+public class DigestCache {
+    private static final String TAG = "DigestCache";
+    private static final String FILENAME = "digest.cache";
+
+    private static final int VERSION = 1;
+    private static final int MAX_ENTRIES = 64;
+
+    private static File sCacheFile;
+    private static LinkedHashMap<String, Entry> sEntries;
+
+    private static class Entry {
+        final long length;
+        final long lastModified;
+        final String digest;
+
+        Entry(long length, long lastModified, String digest) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+
+    private DigestCache() {
+        // this class is not supposed to be instantiated
+    }
+
+    public static synchronized void init(Context context) {
+        sCacheFile = new File(context.getFilesDir(), FILENAME);
+        sEntries = null;
+    }
+
+    /**
+     * @return the cached digest, or null if the file is unknown or changed
+     */
+    public static synchronized String get(File file, String algorithm) {
+        if (!ensureLoaded()) {
+            return null;
+        }
+
+        String key = makeKey(file, algorithm);
+        Entry entry = sEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.length != file.length() || entry.lastModified != file.lastModified()) {
+            sEntries.remove(key);
+            save();
+            return null;
+        }
+        return entry.digest;
+    }
+
+    public static synchronized void put(File file, String algorithm, String digest) {
+        if (digest == null || !file.isFile() || !ensureLoaded()) {
+            return;
+        }
+
+        sEntries.put(makeKey(file, algorithm),
+                new Entry(file.length(), file.lastModified(), digest));
+        save();
+    }
+
+    public static synchronized void invalidate(File file) {
+        if (!ensureLoaded()) {
+            return;
+        }
+
+        String suffix = ":" + file.getAbsolutePath();
+        boolean changed = false;
+        Iterator<String> keys = sEntries.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().endsWith(suffix)) {
+                keys.remove();
+                changed = true;
+            }
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    /**
+     * Finds a file with the given digest without hashing anything. Files that
+     * were hashed under another name and renamed since are recognized among
+     * the candidates by their length and modification time.
+     *
+     * @return the file, or null if none is known to have the digest
+     */
+    public static synchronized File find(String algorithm, String digest, File[] candidates) {
+        if (digest == null || !ensureLoaded()) {
+            return null;
+        }
+
+        String prefix = algorithm + ":";
+        ArrayList<String> stale = new ArrayList<String>();
+        for (Map.Entry<String, Entry> entry : sEntries.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)
+                    || !digest.equalsIgnoreCase(entry.getValue().digest)) {
+                continue;
+            }
+            File file = new File(entry.getKey().substring(prefix.length()));
+            if (!file.exists()) {
+                stale.add(entry.getKey());
+            } else if (entry.getValue().length == file.length()
+                    && entry.getValue().lastModified == file.lastModified()) {
+                return file;
+            }
+        }
+        if (stale.isEmpty() || candidates == null) {
+            return null;
+        }
+
+        for (File candidate : candidates) {
+            if (sEntries.containsKey(makeKey(candidate, algorithm))) {
+                // Hashed under this name, and it didn't match
+                continue;
+            }
+            for (String key : stale) {
+                Entry entry = sEntries.get(key);
+                if (entry.length == candidate.length()
+                        && entry.lastModified == candidate.lastModified()) {
+                    Log.d(TAG, candidate + " was renamed from " + key.substring(prefix.length()));
+                    move(new File(key.substring(prefix.length())), candidate);
+                    save();
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives a new name of a file the digests of the old one
+     *
+     * @param keepSource whether the old name still exists, e.g. for a hard link
+     */
+    public static synchronized void link(File from, File to, boolean keepSource) {
+        if (!ensureLoaded()) {
+            return;
+        }
+
+        if (keepSource) {
+            copy(from, to);
+        } else {
+            move(from, to);
+        }
+        save();
+    }
+
+    private static void copy(File from, File to) {
+        String suffix = ":" + from.getAbsolutePath();
+        HashMap<String, Entry> copies = new HashMap<String, Entry>();
+        for (Map.Entry<String, Entry> entry : sEntries.entrySet()) {
+            String key = entry.getKey();
+            if (key.endsWith(suffix)) {
+                String algorithm = key.substring(0, key.length() - suffix.length());
+                copies.put(makeKey(to, algorithm), entry.getValue());
+            }
+        }
+        sEntries.putAll(copies);
+    }
+
+    private static void move(File from, File to) {
+        copy(from, to);
+        String suffix = ":" + from.getAbsolutePath();
+        Iterator<String> keys = sEntries.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().endsWith(suffix)) {
+                keys.remove();
+            }
+        }
+    }
+
+    public static synchronized void putAll(File file, Map<String, String> digests) {
+        if (digests == null || !file.isFile() || !ensureLoaded()) {
+            return;
+        }
+
+        boolean changed = false;
+        for (Map.Entry<String, String> entry : digests.entrySet()) {
+            if (entry.getValue() != null) {
+                sEntries.put(makeKey(file, entry.getKey()),
+                        new Entry(file.length(), file.lastModified(), entry.getValue()));
+                changed = true;
+            }
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    private static String makeKey(File file, String algorithm) {
+        return algorithm + ":" + file.getAbsolutePath();
+    }
+
+    private static boolean ensureLoaded() {
+        if (sCacheFile == null) {
+            return false;
+        }
+        if (sEntries != null) {
+            return true;
+        }
+
+        // Access ordered, so the least recently used entry is dropped first
+        sEntries = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(sCacheFile)));
+            if (in.readInt() != VERSION) {
+                Log.d(TAG, "Discarding cache with unknown version");
+                return true;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                String digest = in.readUTF();
+                sEntries.put(key, new Entry(length, lastModified, digest));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading digest cache", e);
+            sEntries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void save() {
+        File tmpFile = new File(sCacheFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(VERSION);
+            out.writeInt(sEntries.size());
+            for (Map.Entry<String, Entry> entry : sEntries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().length);
+                out.writeLong(entry.getValue().lastModified);
+                out.writeUTF(entry.getValue().digest);
+            }
+            out.close();
+            out = null;
+            written = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on saving digest cache", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+
+        if (written && !tmpFile.renameTo(sCacheFile)) {
+            Log.e(TAG, "Unable to replace " + sCacheFile);
+        }
+    }
+}
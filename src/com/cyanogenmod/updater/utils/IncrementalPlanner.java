@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.utils;
+
+import android.util.Log;
+
+import com.cyanogenmod.updater.misc.UpdateInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the cheapest way from the installed build to a target build over
+ * incrementals. The builds are nodes, every incremental the server has is an
+ * edge weighted by its download size, and the cheapest path is searched with
+ * Dijkstra. Incrementals are looked up as the search reaches their source, so
+ * builds that can't be part of a cheap path are never asked about.
+ */
+public class IncrementalPlanner {
+    private static final String TAG = "IncrementalPlanner";
+
+    /**
+     * Looks up the incremental between two builds, e.g. with the get_delta API
+     */
+    public interface Lookup {
+        /**
+         * @return the incremental, or null if the server has none
+         */
+        Hop find(String sourceIncremental, String targetIncremental);
+    }
+
+    /**
+     * One incremental of a path
+     */
+    public static class Hop {
+        public final String source;
+        public final String target;
+        public final UpdateInfo info;
+        // Download size, -1 if unknown
+        public final long size;
+
+        public Hop(String source, String target, UpdateInfo info, long size) {
+            this.source = source;
+            this.target = target;
+            this.info = info;
+            this.size = size;
+        }
+
+        @Override
+        public String toString() {
+            return source + " -> " + target + " (" + size + " bytes)";
+        }
+    }
+
+    private static class Node implements Comparable<Node> {
+        final int index;
+        final long cost;
+
+        Node(int index, long cost) {
+            this.index = index;
+            this.cost = cost;
+        }
+
+        @Override
+        public int compareTo(Node other) {
+            return cost < other.cost ? -1 : (cost == other.cost ? 0 : 1);
+        }
+    }
+
+    private final Lookup mLookup;
+    private final int mMaxLookups;
+
+    /**
+     * @param maxLookups how many incrementals may be looked up for one plan
+     */
+    public IncrementalPlanner(Lookup lookup, int maxLookups) {
+        mLookup = lookup;
+        mMaxLookups = maxLookups;
+    }
+
+    /**
+     * @param builds incrementals of the builds between source and target,
+     *        oldest first. Incrementals only lead from older to newer builds.
+     * @param fullSize size of the full zip of the target, -1 if unknown
+     * @return the incrementals to apply in order, or null if downloading the
+     *         full zip is cheaper or there is no path
+     */
+    public List<Hop> plan(String source, String target, List<String> builds, long fullSize) {
+        ArrayList<String> nodes = new ArrayList<String>();
+        nodes.add(source);
+        for (String build : builds) {
+            if (!build.equals(source) && !build.equals(target) && !nodes.contains(build)) {
+                nodes.add(build);
+            }
+        }
+        nodes.add(target);
+        int targetIndex = nodes.size() - 1;
+
+        // Without the full size there's nothing to compare to, so all
+        // incrementals of unknown size count the same and fewer hops win
+        long unknownSize = fullSize >= 0 ? fullSize : 1;
+        long[] cost = new long[nodes.size()];
+        Hop[] via = new Hop[nodes.size()];
+        int[] previous = new int[nodes.size()];
+        Arrays.fill(cost, Long.MAX_VALUE);
+        cost[0] = 0;
+
+        HashSet<Integer> done = new HashSet<Integer>();
+        PriorityQueue<Node> queue = new PriorityQueue<Node>();
+        queue.add(new Node(0, 0));
+        int lookups = 0;
+
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            if (node.index == targetIndex) {
+                break;
+            }
+            if (!done.add(node.index)) {
+                continue;
+            }
+            if (fullSize >= 0 && node.cost >= fullSize) {
+                // Everything from here on costs more than the full zip
+                break;
+            }
+
+            // The target first, the direct incremental is the most likely one
+            for (int next = targetIndex; next > node.index; next--) {
+                if (done.contains(next) || cost[next] <= node.cost) {
+                    continue;
+                }
+                if (lookups >= mMaxLookups) {
+                    Log.d(TAG, "Giving up on looking for more incrementals after " + lookups);
+                    queue.clear();
+                    break;
+                }
+                lookups++;
+
+                Hop hop = mLookup.find(nodes.get(node.index), nodes.get(next));
+                if (hop == null) {
+                    continue;
+                }
+                long hopCost = node.cost + (hop.size >= 0 ? hop.size : unknownSize);
+                if (hopCost < cost[next]) {
+                    cost[next] = hopCost;
+                    via[next] = hop;
+                    previous[next] = node.index;
+                    queue.add(new Node(next, hopCost));
+                }
+            }
+        }
+
+        if (via[targetIndex] == null) {
+            Log.d(TAG, "No incrementals from " + source + " to " + target);
+            return null;
+        }
+        if (fullSize >= 0 && cost[targetIndex] > fullSize) {
+            Log.d(TAG, "Incrementals to " + target + " take " + cost[targetIndex]
+                    + " bytes, the full zip " + fullSize);
+            return null;
+        }
+
+        ArrayList<Hop> path = new ArrayList<Hop>();
+        for (int index = targetIndex; index != 0; index = previous[index]) {
+            path.add(via[index]);
+        }
+        Collections.reverse(path);
+        Log.d(TAG, "Path to " + target + ": " + path + ", " + lookups + " lookups");
+        return path;
+    }
+}
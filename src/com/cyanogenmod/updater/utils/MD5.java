@@ -9,6 +9,7 @@
 
 package com.cyanogenmod.updater.utils;
 
+import android.os.SystemProperties;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -16,14 +17,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class MD5 {
     private static final String TAG = "MD5";
 
+    private static final String WINDOW_SIZE_PROPERTY = "cm.updater.md5.window";
+    private static final int DEFAULT_WINDOW_SIZE = 256 * 1024;
+    private static final int MAX_WINDOW_SIZE_KB = 16 * 1024;
+
     public static boolean checkMD5(String md5, File updateFile) {
         if (TextUtils.isEmpty(md5) || updateFile == null) {
             Log.e(TAG, "MD5 string empty or updateFile null");
@@ -36,22 +42,70 @@ public class MD5 {
             return false;
         }
 
+        return checkMD5(md5, calculatedDigest);
+    }
+
+    /**
+     * Compare a provided MD5 against one that was already calculated, e.g. while
+     * the file was being downloaded.
+     */
+    public static boolean checkMD5(String md5, String calculatedDigest) {
+        if (TextUtils.isEmpty(md5) || TextUtils.isEmpty(calculatedDigest)) {
+            Log.e(TAG, "MD5 string or calculated digest empty");
+            return false;
+        }
+
         Log.v(TAG, "Calculated digest: " + calculatedDigest);
         Log.v(TAG, "Provided digest: " + md5);
 
         return calculatedDigest.equalsIgnoreCase(md5);
     }
 
-    public static String calculateMD5(File updateFile) {
-        MessageDigest digest;
+    public static MessageDigest newDigest() {
         try {
-            digest = MessageDigest.getInstance("MD5");
+            return MessageDigest.getInstance("MD5");
         } catch (NoSuchAlgorithmException e) {
             Log.e(TAG, "Exception while getting digest", e);
             return null;
         }
+    }
+
+    public static String toHexString(byte[] md5sum) {
+        BigInteger bigInt = new BigInteger(1, md5sum);
+        String output = bigInt.toString(16);
+        // Fill to two chars per byte, 32 for an MD5
+        return String.format("%" + (md5sum.length * 2) + "s", output).replace(' ', '0');
+    }
+
+    /**
+     * Size of the window streamed through the digest per read, can be tuned
+     * with the cm.updater.md5.window property (in KiB)
+     */
+    public static int getWindowSize() {
+        int windowKb = SystemProperties.getInt(WINDOW_SIZE_PROPERTY, 0);
+        if (windowKb <= 0) {
+            return DEFAULT_WINDOW_SIZE;
+        }
+        return Math.min(windowKb, MAX_WINDOW_SIZE_KB) * 1024;
+    }
+
+    public static String calculateMD5(File updateFile) {
+        return calculateMD5(updateFile, getWindowSize());
+    }
+
+    public static String calculateMD5(File updateFile, int windowSize) {
+        // Unchanged files don't need to be hashed again
+        String cachedDigest = DigestCache.get(updateFile, MultiDigest.ALGORITHM_MD5);
+        if (cachedDigest != null) {
+            return cachedDigest;
+        }
+
+        MessageDigest digest = newDigest();
+        if (digest == null) {
+            return null;
+        }
 
-        InputStream is;
+        FileInputStream is;
         try {
             is = new FileInputStream(updateFile);
         } catch (FileNotFoundException e) {
@@ -59,18 +113,19 @@ public class MD5 {
             return null;
         }
 
-        byte[] buffer = new byte[8192];
-        int read;
+        // Read through the channel into a direct buffer, so the data does not
+        // have to be copied into a Java heap array before it reaches the digest
+        FileChannel channel = is.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(windowSize);
         try {
-            while ((read = is.read(buffer)) > 0) {
-                digest.update(buffer, 0, read);
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
             }
-            byte[] md5sum = digest.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            String output = bigInt.toString(16);
-            // Fill to 32 chars
-            output = String.format("%32s", output).replace(' ', '0');
-            return output;
+            String calculatedDigest = toHexString(digest.digest());
+            DigestCache.put(updateFile, MultiDigest.ALGORITHM_MD5, calculatedDigest);
+            return calculatedDigest;
         } catch (IOException e) {
             throw new RuntimeException("Unable to process file for MD5", e);
         } finally {
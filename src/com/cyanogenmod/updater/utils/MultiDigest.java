@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.utils;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Calculates several digests of the same data at once, so a file only has
+ * to be read a single time no matter how many checksums we verify.
+ */
+public class MultiDigest {
+    private static final String TAG = "MultiDigest";
+
+    public static final String ALGORITHM_MD5 = "MD5";
+    public static final String ALGORITHM_SHA256 = "SHA-256";
+    public static final String ALGORITHM_CRC32 = "CRC32";
+
+    private final LinkedHashMap<String, MessageDigest> mDigests =
+            new LinkedHashMap<String, MessageDigest>();
+    private CRC32 mCrc32;
+
+    public MultiDigest(String... algorithms) throws NoSuchAlgorithmException {
+        for (String algorithm : algorithms) {
+            if (ALGORITHM_CRC32.equals(algorithm)) {
+                mCrc32 = new CRC32();
+            } else if (!mDigests.containsKey(algorithm)) {
+                mDigests.put(algorithm, MessageDigest.getInstance(algorithm));
+            }
+        }
+    }
+
+    public void update(byte[] buffer, int offset, int length) {
+        for (MessageDigest digest : mDigests.values()) {
+            digest.update(buffer, offset, length);
+        }
+        if (mCrc32 != null) {
+            mCrc32.update(buffer, offset, length);
+        }
+    }
+
+    /**
+     * Completes all digests.
+     *
+     * @return hex strings keyed by algorithm name
+     */
+    public HashMap<String, String> finish() {
+        HashMap<String, String> result = new HashMap<String, String>();
+        for (Map.Entry<String, MessageDigest> entry : mDigests.entrySet()) {
+            result.put(entry.getKey(), MD5.toHexString(entry.getValue().digest()));
+        }
+        if (mCrc32 != null) {
+            result.put(ALGORITHM_CRC32, String.format("%08x", mCrc32.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Reads the file once, fanning every window out to all requested digests.
+     *
+     * @return hex strings keyed by algorithm name, or null on error
+     */
+    public static HashMap<String, String> calculate(File file, String... algorithms) {
+        // Unchanged files don't need to be hashed again
+        HashMap<String, String> cachedDigests = new HashMap<String, String>();
+        for (String algorithm : algorithms) {
+            String cachedDigest = DigestCache.get(file, algorithm);
+            if (cachedDigest == null) {
+                break;
+            }
+            cachedDigests.put(algorithm, cachedDigest);
+        }
+        if (cachedDigests.size() == algorithms.length) {
+            return cachedDigests;
+        }
+
+        MultiDigest digest;
+        try {
+            digest = new MultiDigest(algorithms);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Exception while getting digest", e);
+            return null;
+        }
+
+        FileInputStream is;
+        try {
+            is = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Exception while getting FileInputStream", e);
+            return null;
+        }
+
+        // CRC32 can only consume arrays on our API level, so read into a heap buffer
+        byte[] window = new byte[MD5.getWindowSize()];
+        ByteBuffer buffer = ByteBuffer.wrap(window);
+        FileChannel channel = is.getChannel();
+        try {
+            int read;
+            while ((read = channel.read(buffer)) > 0) {
+                digest.update(window, 0, read);
+                buffer.clear();
+            }
+            HashMap<String, String> calculatedDigests = digest.finish();
+            DigestCache.putAll(file, calculatedDigests);
+            return calculatedDigests;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to process " + file, e);
+            return null;
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception on closing input stream", e);
+            }
+        }
+    }
+
+    /**
+     * Checks every expected digest against the calculated ones. Expected
+     * entries without a value are skipped, but at least one has to match.
+     */
+    public static boolean matches(Map<String, String> expected,
+            Map<String, String> calculated) {
+        if (expected == null || calculated == null) {
+            return false;
+        }
+
+        int checked = 0;
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            if (TextUtils.isEmpty(entry.getValue())) {
+                continue;
+            }
+            String actual = calculated.get(entry.getKey());
+            Log.v(TAG, entry.getKey() + " calculated: " + actual
+                    + ", provided: " + entry.getValue());
+            if (actual == null || !actual.equalsIgnoreCase(entry.getValue())) {
+                return false;
+            }
+            checked++;
+        }
+        return checked > 0;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * CRC-32 as calculated by java.util.zip.CRC32, whose running value can be
+ * saved and restored, like {@link ResumableMD5}.
+ */
+public class ResumableCRC32 {
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? 0xedb88320 ^ (c >>> 1) : c >>> 1;
+            }
+            TABLE[i] = c;
+        }
+    }
+
+    private int mCrc;
+    private long mCount;
+
+    /**
+     * Get number of bytes processed so far
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    public void update(byte[] input, int offset, int length) {
+        mCount += length;
+        int c = ~mCrc;
+        for (int i = offset; i < offset + length; i++) {
+            c = TABLE[(c ^ input[i]) & 0xff] ^ (c >>> 8);
+        }
+        mCrc = ~c;
+    }
+
+    public long getValue() {
+        return mCrc & 0xffffffffL;
+    }
+
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(mCrc);
+        out.writeLong(mCount);
+    }
+
+    public static ResumableCRC32 restoreState(DataInput in) throws IOException {
+        ResumableCRC32 crc32 = new ResumableCRC32();
+        crc32.mCrc = in.readInt();
+        crc32.mCount = in.readLong();
+        return crc32;
+    }
+}
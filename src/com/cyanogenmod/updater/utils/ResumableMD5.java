@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * MD5 implementation (RFC 1321) whose intermediate state can be saved and
+ * restored, which MessageDigest does not allow. This lets a verification that
+ * was interrupted continue where it left off instead of starting over.
+ */
+public class ResumableMD5 {
+    private static final int BLOCK_SIZE = 64;
+
+    private static final int[] SHIFTS = {
+        7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22,
+        5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20,
+        4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23,
+        6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21
+    };
+
+    private static final int[] K = {
+        0xd76aa478, 0xe8c7b756, 0x242070db, 0xc1bdceee,
+        0xf57c0faf, 0x4787c62a, 0xa8304613, 0xfd469501,
+        0x698098d8, 0x8b44f7af, 0xffff5bb1, 0x895cd7be,
+        0x6b901122, 0xfd987193, 0xa679438e, 0x49b40821,
+        0xf61e2562, 0xc040b340, 0x265e5a51, 0xe9b6c7aa,
+        0xd62f105d, 0x02441453, 0xd8a1e681, 0xe7d3fbc8,
+        0x21e1cde6, 0xc33707d6, 0xf4d50d87, 0x455a14ed,
+        0xa9e3e905, 0xfcefa3f8, 0x676f02d9, 0x8d2a4c8a,
+        0xfffa3942, 0x8771f681, 0x6d9d6122, 0xfde5380c,
+        0xa4beea44, 0x4bdecfa9, 0xf6bb4b60, 0xbebfbc70,
+        0x289b7ec6, 0xeaa127fa, 0xd4ef3085, 0x04881d05,
+        0xd9d4d039, 0xe6db99e5, 0x1fa27cf8, 0xc4ac5665,
+        0xf4292244, 0x432aff97, 0xab9423a7, 0xfc93a039,
+        0x655b59c3, 0x8f0ccc92, 0xffeff47d, 0x85845dd1,
+        0x6fa87e4f, 0xfe2ce6e0, 0xa3014314, 0x4e0811a1,
+        0xf7537e82, 0xbd3af235, 0x2ad7d2bb, 0xeb86d391
+    };
+
+    private final int[] mState = new int[4];
+    private final int[] mWords = new int[16];
+    private final byte[] mBuffer = new byte[BLOCK_SIZE];
+    private int mBufferLength;
+    private long mCount;
+
+    public ResumableMD5() {
+        reset();
+    }
+
+    public void reset() {
+        mState[0] = 0x67452301;
+        mState[1] = 0xefcdab89;
+        mState[2] = 0x98badcfe;
+        mState[3] = 0x10325476;
+        mBufferLength = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Get number of bytes digested so far
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    public void update(byte[] input, int offset, int length) {
+        mCount += length;
+
+        if (mBufferLength > 0) {
+            int fill = Math.min(length, BLOCK_SIZE - mBufferLength);
+            System.arraycopy(input, offset, mBuffer, mBufferLength, fill);
+            mBufferLength += fill;
+            offset += fill;
+            length -= fill;
+            if (mBufferLength < BLOCK_SIZE) {
+                return;
+            }
+            transform(mBuffer, 0);
+            mBufferLength = 0;
+        }
+
+        while (length >= BLOCK_SIZE) {
+            transform(input, offset);
+            offset += BLOCK_SIZE;
+            length -= BLOCK_SIZE;
+        }
+
+        if (length > 0) {
+            System.arraycopy(input, offset, mBuffer, 0, length);
+            mBufferLength = length;
+        }
+    }
+
+    /**
+     * Completes the digest and resets the state
+     */
+    public byte[] digest() {
+        long bits = mCount << 3;
+        int padLength = (mBufferLength < 56) ? (56 - mBufferLength) : (120 - mBufferLength);
+        byte[] padding = new byte[padLength + 8];
+        padding[0] = (byte) 0x80;
+        for (int i = 0; i < 8; i++) {
+            padding[padLength + i] = (byte) (bits >>> (8 * i));
+        }
+        update(padding, 0, padding.length);
+
+        byte[] result = new byte[16];
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                result[i * 4 + j] = (byte) (mState[i] >>> (8 * j));
+            }
+        }
+        reset();
+        return result;
+    }
+
+    public void saveState(DataOutput out) throws IOException {
+        for (int word : mState) {
+            out.writeInt(word);
+        }
+        out.writeLong(mCount);
+        out.writeInt(mBufferLength);
+        out.write(mBuffer, 0, mBufferLength);
+    }
+
+    public static ResumableMD5 restoreState(DataInput in) throws IOException {
+        ResumableMD5 md5 = new ResumableMD5();
+        for (int i = 0; i < md5.mState.length; i++) {
+            md5.mState[i] = in.readInt();
+        }
+        md5.mCount = in.readLong();
+        md5.mBufferLength = in.readInt();
+        if (md5.mBufferLength < 0 || md5.mBufferLength >= BLOCK_SIZE) {
+            throw new IOException("Invalid buffer length " + md5.mBufferLength);
+        }
+        in.readFully(md5.mBuffer, 0, md5.mBufferLength);
+        return md5;
+    }
+
+    private void transform(byte[] block, int offset) {
+        for (int i = 0; i < 16; i++) {
+            int pos = offset + i * 4;
+            mWords[i] = (block[pos] & 0xff)
+                    | ((block[pos + 1] & 0xff) << 8)
+                    | ((block[pos + 2] & 0xff) << 16)
+                    | ((block[pos + 3] & 0xff) << 24);
+        }
+
+        int a = mState[0];
+        int b = mState[1];
+        int c = mState[2];
+        int d = mState[3];
+
+        for (int i = 0; i < 64; i++) {
+            int f;
+            int g;
+            if (i < 16) {
+                f = (b & c) | (~b & d);
+                g = i;
+            } else if (i < 32) {
+                f = (d & b) | (~d & c);
+                g = (5 * i + 1) & 15;
+            } else if (i < 48) {
+                f = b ^ c ^ d;
+                g = (3 * i + 5) & 15;
+            } else {
+                f = c ^ (b | ~d);
+                g = (7 * i) & 15;
+            }
+            int tmp = d;
+            d = c;
+            c = b;
+            b = b + Integer.rotateLeft(a + f + K[i] + mWords[g], SHIFTS[i]);
+            a = tmp;
+        }
+
+        mState[0] += a;
+        mState[1] += b;
+        mState[2] += c;
+        mState[3] += d;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * SHA-256 implementation (FIPS 180-4) whose intermediate state can be saved
+ * and restored, like {@link ResumableMD5}.
+ */
+public class ResumableSHA256 {
+    private static final int BLOCK_SIZE = 64;
+
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5,
+        0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
+        0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc,
+        0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+        0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
+        0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3,
+        0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5,
+        0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
+        0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private final int[] mState = new int[8];
+    private final int[] mWords = new int[64];
+    private final byte[] mBuffer = new byte[BLOCK_SIZE];
+    private int mBufferLength;
+    private long mCount;
+
+    public ResumableSHA256() {
+        reset();
+    }
+
+    public void reset() {
+        mState[0] = 0x6a09e667;
+        mState[1] = 0xbb67ae85;
+        mState[2] = 0x3c6ef372;
+        mState[3] = 0xa54ff53a;
+        mState[4] = 0x510e527f;
+        mState[5] = 0x9b05688c;
+        mState[6] = 0x1f83d9ab;
+        mState[7] = 0x5be0cd19;
+        mBufferLength = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Get number of bytes digested so far
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    public void update(byte[] input, int offset, int length) {
+        mCount += length;
+
+        if (mBufferLength > 0) {
+            int fill = Math.min(length, BLOCK_SIZE - mBufferLength);
+            System.arraycopy(input, offset, mBuffer, mBufferLength, fill);
+            mBufferLength += fill;
+            offset += fill;
+            length -= fill;
+            if (mBufferLength < BLOCK_SIZE) {
+                return;
+            }
+            transform(mBuffer, 0);
+            mBufferLength = 0;
+        }
+
+        while (length >= BLOCK_SIZE) {
+            transform(input, offset);
+            offset += BLOCK_SIZE;
+            length -= BLOCK_SIZE;
+        }
+
+        if (length > 0) {
+            System.arraycopy(input, offset, mBuffer, 0, length);
+            mBufferLength = length;
+        }
+    }
+
+    /**
+     * Completes the digest and resets the state
+     */
+    public byte[] digest() {
+        long bits = mCount << 3;
+        int padLength = (mBufferLength < 56) ? (56 - mBufferLength) : (120 - mBufferLength);
+        byte[] padding = new byte[padLength + 8];
+        padding[0] = (byte) 0x80;
+        for (int i = 0; i < 8; i++) {
+            padding[padLength + i] = (byte) (bits >>> (56 - 8 * i));
+        }
+        update(padding, 0, padding.length);
+
+        byte[] result = new byte[32];
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 4; j++) {
+                result[i * 4 + j] = (byte) (mState[i] >>> (24 - 8 * j));
+            }
+        }
+        reset();
+        return result;
+    }
+
+    public void saveState(DataOutput out) throws IOException {
+        for (int word : mState) {
+            out.writeInt(word);
+        }
+        out.writeLong(mCount);
+        out.writeInt(mBufferLength);
+        out.write(mBuffer, 0, mBufferLength);
+    }
+
+    public static ResumableSHA256 restoreState(DataInput in) throws IOException {
+        ResumableSHA256 sha256 = new ResumableSHA256();
+        for (int i = 0; i < sha256.mState.length; i++) {
+            sha256.mState[i] = in.readInt();
+        }
+        sha256.mCount = in.readLong();
+        sha256.mBufferLength = in.readInt();
+        if (sha256.mBufferLength < 0 || sha256.mBufferLength >= BLOCK_SIZE) {
+            throw new IOException("Invalid buffer length " + sha256.mBufferLength);
+        }
+        in.readFully(sha256.mBuffer, 0, sha256.mBufferLength);
+        return sha256;
+    }
+
+    private void transform(byte[] block, int offset) {
+        for (int i = 0; i < 16; i++) {
+            int pos = offset + i * 4;
+            mWords[i] = ((block[pos] & 0xff) << 24)
+                    | ((block[pos + 1] & 0xff) << 16)
+                    | ((block[pos + 2] & 0xff) << 8)
+                    | (block[pos + 3] & 0xff);
+        }
+        for (int i = 16; i < 64; i++) {
+            int w15 = mWords[i - 15];
+            int w2 = mWords[i - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            mWords[i] = mWords[i - 16] + s0 + mWords[i - 7] + s1;
+        }
+
+        int a = mState[0];
+        int b = mState[1];
+        int c = mState[2];
+        int d = mState[3];
+        int e = mState[4];
+        int f = mState[5];
+        int g = mState[6];
+        int h = mState[7];
+
+        for (int i = 0; i < 64; i++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11)
+                    ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int t1 = h + s1 + ch + K[i] + mWords[i];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13)
+                    ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int t2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+
+        mState[0] += a;
+        mState[1] += b;
+        mState[2] += c;
+        mState[3] += d;
+        mState[4] += e;
+        mState[5] += f;
+        mState[6] += g;
+        mState[7] += h;
+    }
+}
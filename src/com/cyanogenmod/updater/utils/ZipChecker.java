@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+
+/**
+ * Quick structural check of an update zip. It only reads the end of central
+ * directory record and the central directory, so truncated or mangled
+ * downloads are caught in milliseconds instead of after a full hash.
+ */
+public class ZipChecker {
+    private static final String TAG = "ZipChecker";
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final long ZIP64_MARKER = 0xffffffffL;
+
+    private static final String[] REQUIRED_ENTRIES = {
+        "META-INF/com/android/metadata",
+        "META-INF/com/google/android/update-binary"
+    };
+
+    private ZipChecker() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * @return false if the file is certainly not a complete OTA package, true if
+     *         it looks sane and its digests are worth calculating
+     */
+    public static boolean isValid(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            return checkStructure(file, raf);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception while checking " + file, e);
+            return false;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+    }
+
+    private static boolean checkStructure(File file, RandomAccessFile raf) throws IOException {
+        long fileLength = raf.length();
+        if (fileLength < EOCD_SIZE) {
+            Log.w(TAG, file + " is too short to be a zip");
+            return false;
+        }
+
+        // The record sits at the very end, followed only by the archive comment
+        // (which holds the whole-file signature on signed packages)
+        int tailLength = (int) Math.min(fileLength, EOCD_SIZE + MAX_COMMENT_SIZE);
+        long tailStart = fileLength - tailLength;
+        ByteBuffer tail = read(raf, tailStart, tailLength);
+
+        int eocd = -1;
+        for (int i = tailLength - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE
+                    && i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tailLength) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            Log.w(TAG, file + " has no end of central directory record, truncated?");
+            return false;
+        }
+
+        int entryCount = tail.getShort(eocd + 10) & 0xffff;
+        long cdSize = tail.getInt(eocd + 12) & ZIP64_MARKER;
+        long cdOffset = tail.getInt(eocd + 16) & ZIP64_MARKER;
+        if (cdSize == ZIP64_MARKER || cdOffset == ZIP64_MARKER || entryCount == 0xffff) {
+            // Zip64 archive, leave it to the digests
+            return true;
+        }
+        if (cdOffset + cdSize != tailStart + eocd || cdSize > Integer.MAX_VALUE) {
+            Log.w(TAG, file + " has an inconsistent central directory location");
+            return false;
+        }
+
+        Charset utf8 = Charset.forName("UTF-8");
+        HashSet<String> missing = new HashSet<String>();
+        for (String name : REQUIRED_ENTRIES) {
+            missing.add(name);
+        }
+
+        ByteBuffer cd = read(raf, cdOffset, (int) cdSize);
+        int pos = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (pos + CENTRAL_HEADER_SIZE > cdSize
+                    || cd.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                Log.w(TAG, file + " has a corrupt central directory at entry " + i);
+                return false;
+            }
+            long compressedSize = cd.getInt(pos + 20) & ZIP64_MARKER;
+            int nameLength = cd.getShort(pos + 28) & 0xffff;
+            int extraLength = cd.getShort(pos + 30) & 0xffff;
+            int commentLength = cd.getShort(pos + 32) & 0xffff;
+            long localOffset = cd.getInt(pos + 42) & ZIP64_MARKER;
+
+            int next = pos + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (next > cdSize) {
+                Log.w(TAG, file + " has a truncated central directory entry " + i);
+                return false;
+            }
+            if (compressedSize != ZIP64_MARKER && localOffset != ZIP64_MARKER
+                    && localOffset + LOCAL_HEADER_SIZE + nameLength + compressedSize
+                            > cdOffset) {
+                Log.w(TAG, file + " has entry " + i + " overlapping the central directory");
+                return false;
+            }
+
+            byte[] name = new byte[nameLength];
+            cd.position(pos + CENTRAL_HEADER_SIZE);
+            cd.get(name);
+            missing.remove(new String(name, utf8));
+            pos = next;
+        }
+
+        if (!missing.isEmpty()) {
+            Log.w(TAG, file + " is not an OTA package, missing " + missing);
+            return false;
+        }
+        return true;
+    }
+
+    private static ByteBuffer read(RandomAccessFile raf, long position, int length)
+            throws IOException {
+        byte[] data = new byte[length];
+        raf.seek(position);
+        raf.readFully(data);
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}